@@ -0,0 +1,80 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful.benchmarks;
+
+import com.j0tech.stateful.CompiledStateMachine;
+import com.j0tech.stateful.StateMachine;
+import com.j0tech.stateful.StateMachineCompiler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link StateMachine#update()} on a frozen state machine with {@link CompiledStateMachine#update()} on the
+ * same definition, compiled by {@link StateMachineCompiler}. The definition mixes two transition classes, so the
+ * frozen state machine's guard and callback call sites are polymorphic, while the compiled ones are not.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CompiledUpdateBenchmark {
+
+    @Param({"16", "256"})
+    public int stateCount;
+
+    private StateMachine frozen;
+
+    private CompiledStateMachine compiled;
+
+    @Setup
+    public void setUp() {
+        frozen = Graphs.polymorphicRing(stateCount);
+        frozen.freeze();
+        compiled = StateMachineCompiler.compile(Graphs.polymorphicRing(stateCount));
+    }
+
+    @Benchmark
+    public void frozenUpdate() {
+        frozen.update();
+    }
+
+    @Benchmark
+    public void compiledUpdate() {
+        compiled.update();
+    }
+}
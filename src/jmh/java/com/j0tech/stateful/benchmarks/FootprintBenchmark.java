@@ -0,0 +1,79 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful.benchmarks;
+
+import com.j0tech.stateful.StateMachine;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the heap retained by a frozen ring of states with one transition each. Its {@code bytesPerState} counter
+ * is the size of every object reachable from the state machine, as walked by JOL, divided by the state count: the
+ * memory taken by one state and its transition, including the state machine's own bookkeeping. Transient garbage
+ * from building the ring is not counted, and neither are names, as the states are left unnamed. The time result only
+ * covers building and walking the ring, and can be ignored.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FootprintBenchmark {
+
+    @Param({"1000"})
+    public int stateCount;
+
+    /**
+     * The retained size measured by the last call of an iteration. The layout is the same on every call, so nothing
+     * is accumulated.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+
+        public long bytesPerState;
+    }
+
+    @Benchmark
+    public StateMachine retainedFootprint(Footprint footprint) {
+        final StateMachine stateMachine = Graphs.ring(Graphs.newUnnamedStates(stateCount));
+        stateMachine.freeze();
+        footprint.bytesPerState = GraphLayout.parseInstance(stateMachine).totalSize() / stateCount;
+        return stateMachine;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful.benchmarks;
+
+import com.j0tech.stateful.State;
+import com.j0tech.stateful.StateMachine;
+import com.j0tech.stateful.Transition;
+
+/**
+ * Builds the state machines the benchmarks run. States and transitions do no work in their callbacks, so that only the
+ * state machine's own cost is measured.
+ */
+final class Graphs {
+
+    private Graphs() {
+
+    }
+
+    static final class NoOpState extends State {
+
+        NoOpState() {
+
+        }
+
+        NoOpState(String name) {
+            super(name);
+        }
+
+        @Override
+        public void onEnterState() {
+
+        }
+
+        @Override
+        public void whileInState() {
+
+        }
+
+        @Override
+        public void onExitState() {
+
+        }
+    }
+
+    static final class GuardedTransition extends Transition {
+
+        boolean enabled;
+
+        GuardedTransition(State end, boolean enabled) {
+            super(end);
+            this.enabled = enabled;
+        }
+
+        @Override
+        public void onActivated() {
+
+        }
+
+        @Override
+        public boolean shouldActivate() {
+            return enabled;
+        }
+    }
+
+    /**
+     * A guard of its own class, so that a graph built from several of them has polymorphic call sites.
+     */
+    static final class CountingTransition extends Transition {
+
+        int taken;
+
+        CountingTransition(State end) {
+            super(end);
+        }
+
+        @Override
+        public void onActivated() {
+            taken++;
+        }
+
+        @Override
+        public boolean shouldActivate() {
+            return (taken & 1) == 0;
+        }
+    }
+
+    static State[] newStates(int count) {
+        final State[] states = new State[count];
+        for (int i = 0; i < count; i++) {
+            states[i] = new NoOpState("state" + i);
+        }
+        return states;
+    }
+
+    /**
+     * Builds states without a name, whose default name is only built if it is asked for.
+     */
+    static State[] newUnnamedStates(int count) {
+        final State[] states = new State[count];
+        for (int i = 0; i < count; i++) {
+            states[i] = new NoOpState();
+        }
+        return states;
+    }
+
+    /**
+     * Builds a ring of states, each with one enabled transition to the next, so every update takes a transition.
+     */
+    static StateMachine ring(int stateCount) {
+        return ring(newStates(stateCount));
+    }
+
+    /**
+     * Builds a ring of states, each with a {@link CountingTransition} that skips ahead, which is enabled every other
+     * time it is checked, followed by an enabled transition to the next state. The guards and callbacks of both
+     * classes are called from the same loop, so its call sites see more than one receiver class.
+     */
+    static StateMachine polymorphicRing(int stateCount) {
+        final State[] states = newStates(stateCount);
+        for (int i = 0; i < stateCount; i++) {
+            states[i].addTransition(new CountingTransition(states[(i + stateCount / 2 + 1) % stateCount]));
+            states[i].addTransition(new GuardedTransition(states[(i + 1) % stateCount], true));
+        }
+        final StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(states);
+        stateMachine.setEntryState(states[0]);
+        return stateMachine;
+    }
+
+    /**
+     * Links the given states into a ring, each with one enabled transition to the next.
+     */
+    static StateMachine ring(State[] states) {
+        final int stateCount = states.length;
+        for (int i = 0; i < stateCount; i++) {
+            states[i].addTransition(new GuardedTransition(states[(i + 1) % stateCount], true));
+        }
+        final StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(states);
+        stateMachine.setEntryState(states[0]);
+        return stateMachine;
+    }
+}
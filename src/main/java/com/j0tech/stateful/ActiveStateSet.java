@@ -0,0 +1,153 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.Arrays;
+
+/**
+ * A set of states, stored as a bitset over the state IDs of one {@link StateMachine}. Set operations work on 64 states
+ * at a time.
+ */
+public final class ActiveStateSet {
+
+    long[] words;
+
+    /**
+     * Constructs an empty set that can hold the given number of states.
+     * @param stateCount the number of states
+     */
+    public ActiveStateSet(int stateCount) {
+        words = new long[(stateCount + 63) >>> 6];
+    }
+
+    ActiveStateSet(long[] words) {
+        this.words = words;
+    }
+
+    static long[] newWords(int stateCount) {
+        return new long[(stateCount + 63) >>> 6];
+    }
+
+    static void or(long[] target, long[] source) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] |= source[i];
+        }
+    }
+
+    static boolean intersects(long[] a, long[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if ((a[i] & b[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isEmpty(long[] words) {
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void add(int id) {
+        words[id >>> 6] |= 1L << id;
+    }
+
+    /**
+     * Checks if a state ID is in the set.
+     * @param id the state ID
+     * @return true if the state is in the set, false otherwise
+     */
+    public boolean contains(int id) {
+        return (words[id >>> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * Checks if the set is empty.
+     * @return true if empty, false otherwise
+     */
+    public boolean isEmpty() {
+        return isEmpty(words);
+    }
+
+    /**
+     * Gets the number of states in the set.
+     * @return the number of states
+     */
+    public int size() {
+        int size = 0;
+        for (long word : words) {
+            size += Long.bitCount(word);
+        }
+        return size;
+    }
+
+    /**
+     * Finds the lowest state ID in the set that is at or above the given one. Use this to iterate over the set.
+     * @param from the state ID to start from
+     * @return the state ID, or -1 if there is none
+     */
+    public int nextId(int from) {
+        int index = from >>> 6;
+        if (index >= words.length) {
+            return -1;
+        }
+        long word = words[index] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return (index << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++index == words.length) {
+                return -1;
+            }
+            word = words[index];
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ActiveStateSet && Arrays.equals(words, ((ActiveStateSet) o).words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("{");
+        for (int id = nextId(0); id >= 0; id = nextId(id + 1)) {
+            if (builder.length() > 1) {
+                builder.append(", ");
+            }
+            builder.append(id);
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a frozen {@link StateMachine} definition with asynchronous callbacks: {@link State#onExitStateAsync()},
+ * {@link Transition#onActivatedAsync()} and {@link State#onEnterStateAsync()} may return a stage that completes later,
+ * for example when some I/O is done, and no thread is blocked while waiting for it.
+ *
+ * Events and updates are queued, and handled one at a time on an executor, in the order they were requested. While a
+ * transition's callbacks are pending, the state machine is transitioning: requests made in the meantime wait in the
+ * queue, and are only handled once the end state has been entered. The current state changes to the end state just
+ * before its {@link State#onEnterStateAsync()} is called. If a callback fails, the request's stage completes
+ * exceptionally, the state machine stays in the state it was in when the callback was called, and the next request is
+ * handled. If the executor rejects a task, for example because it has been shut down, the stages of every request
+ * still waiting complete exceptionally with the {@link RejectedExecutionException}.
+ *
+ * Each request takes at most one transition, picked like in {@link StepMode#FIRST_MATCH} mode. The entry state is
+ * entered when the first request is handled. The definition's journal and metrics are not used.
+ */
+public final class AsyncStateMachine {
+
+    private static final CompletionStage<Boolean> NOT_TAKEN = CompletableFuture.completedFuture(Boolean.FALSE);
+
+    private final StateMachine definition;
+
+    private final CompiledGraph graph;
+
+    private final Executor executor;
+
+    private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final Runnable drain = this::drain;
+
+    private volatile int currentStateId;
+
+    private volatile boolean transitioning;
+
+    private boolean started;
+
+    /**
+     * Constructs an asynchronous state machine, starting at the definition's entry state. The definition is frozen if
+     * it has not been already.
+     * @param definition the state machine to run
+     * @param executor the executor requests are handled, and callbacks resumed, on
+     */
+    public AsyncStateMachine(StateMachine definition, Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("Executor cannot be null");
+        }
+        graph = definition.getGraph();
+        this.definition = definition;
+        this.executor = executor;
+        currentStateId = definition.getEntryStateId();
+    }
+
+    /**
+     * Gets the state machine this runs.
+     * @return the definition
+     */
+    public StateMachine getDefinition() {
+        return definition;
+    }
+
+    /**
+     * Queues an event, to be handled like {@link StateMachine#fire(Object)}.
+     * @param event the event
+     * @return a stage that completes with true if a transition was taken, or false if none accepted the event
+     */
+    public CompletionStage<Boolean> fire(Object event) {
+        if (event == null) {
+            throw new NullPointerException("Events cannot be null");
+        }
+        return enqueue(event);
+    }
+
+    /**
+     * Queues an update, handled like {@link StateMachine#update()}: {@link State#whileInState()} is called, and the
+     * first polled transition whose conditions are met is taken.
+     * @return a stage that completes with true if a transition was taken, or false if none was enabled
+     */
+    public CompletionStage<Boolean> update() {
+        return enqueue(null);
+    }
+
+    /**
+     * Gets the current state. While transitioning, this is the start state until the end state starts being entered.
+     * @return the current state
+     */
+    public State getCurrentState() {
+        return graph.states[currentStateId];
+    }
+
+    /**
+     * Checks if a transition's callbacks are pending.
+     * @return true if transitioning, false otherwise
+     */
+    public boolean isTransitioning() {
+        return transitioning;
+    }
+
+    /**
+     * Gets the number of requests waiting to be handled, not counting the one being handled.
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    private CompletionStage<Boolean> enqueue(Object event) {
+        final Request request = new Request(event);
+        queue.offer(request);
+        queueDepth.incrementAndGet();
+        schedule();
+        return request.result;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drain);
+            } catch (RejectedExecutionException e) {
+                reject(e);
+            }
+        }
+    }
+
+    /**
+     * Fails every waiting request, as no drain task will run to handle them. Called with the drain scheduled, so no
+     * other thread is handling requests meanwhile.
+     */
+    private void reject(RejectedExecutionException e) {
+        Request request;
+        while ((request = queue.poll()) != null) {
+            queueDepth.decrementAndGet();
+            request.result.completeExceptionally(e);
+        }
+        scheduled.set(false);
+        if (!queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private void drain() {
+        Request request;
+        while ((request = queue.poll()) != null) {
+            queueDepth.decrementAndGet();
+            final Request handled = request;
+            final CompletableFuture<Boolean> stage = handle(request).toCompletableFuture();
+            if (!stage.isDone()) {
+                // keep the drain scheduled, so that no other request is handled until this one is done
+                stage.whenComplete((taken, failure) -> resume(handled, taken, failure));
+                return;
+            }
+            stage.whenComplete((taken, failure) -> finish(handled, taken, failure));
+        }
+        scheduled.set(false);
+        // a request may have arrived after the last poll, but before the flag was cleared
+        if (!queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private void resume(Request request, Boolean taken, Throwable failure) {
+        try {
+            executor.execute(() -> {
+                finish(request, taken, failure);
+                drain();
+            });
+        } catch (RejectedExecutionException e) {
+            finish(request, taken, failure);
+            reject(e);
+        }
+    }
+
+    private CompletionStage<Boolean> handle(Request request) {
+        try {
+            if (!started) {
+                started = true;
+                transitioning = true;
+                return graph.states[currentStateId].onEnterStateAsync().thenCompose(ignored -> select(request));
+            }
+            return select(request);
+        } catch (Throwable t) {
+            return CompletableFuture.failedStage(t);
+        }
+    }
+
+    private CompletionStage<Boolean> select(Request request) {
+        final int stateId = currentStateId;
+        final State state = graph.states[stateId];
+        final Transition transition;
+        final int target;
+        if (request.event == null) {
+            state.whileInState();
+            final int index = selectPolled(stateId);
+            if (index < 0) {
+                return NOT_TAKEN;
+            }
+            transition = graph.guards[index];
+            target = graph.targets[index];
+        } else {
+            transition = state.findEventTransition(request.event, null);
+            if (transition == null) {
+                return NOT_TAKEN;
+            }
+            target = definition.getStateId(transition.endState);
+        }
+        transitioning = true;
+        return state.onExitStateAsync()
+                .thenCompose(ignored -> transition.onActivatedAsync())
+                .thenCompose(ignored -> {
+                    currentStateId = target;
+                    return graph.states[target].onEnterStateAsync();
+                })
+                .thenApply(ignored -> Boolean.TRUE);
+    }
+
+    private int selectPolled(int stateId) {
+        for (int i = graph.offsets[stateId], end = graph.offsets[stateId + 1]; i < end; i++) {
+            if (graph.shouldActivate(i, MetricsProbe.NONE)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void finish(Request request, Boolean taken, Throwable failure) {
+        transitioning = false;
+        if (failure == null) {
+            request.result.complete(taken);
+        } else {
+            final boolean wrapped = failure instanceof CompletionException && failure.getCause() != null;
+            request.result.completeExceptionally(wrapped ? failure.getCause() : failure);
+        }
+    }
+
+    private static final class Request {
+
+        final Object event;
+
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Request(Object event) {
+            this.event = event;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The symbol-labelled transitions of a frozen {@link StateMachine}, compiled into bitsets over its state IDs.
+ *
+ * Every bitset already includes the epsilon closure of the states it holds, so advancing a set of active states by
+ * one symbol is a single OR per active state.
+ */
+final class Automaton {
+
+    final int stateCount;
+
+    /**
+     * The epsilon closure of the entry state.
+     */
+    final long[] start;
+
+    final long[] accepting;
+
+    private final int[][] symbols;
+
+    private final long[][][] successors;
+
+    private Automaton(int stateCount, long[] start, long[] accepting, int[][] symbols, long[][][] successors) {
+        this.stateCount = stateCount;
+        this.start = start;
+        this.accepting = accepting;
+        this.symbols = symbols;
+        this.successors = successors;
+    }
+
+    static Automaton compile(StateMachine stateMachine) {
+        final int stateCount = stateMachine.getStateCount();
+        final long[][] closures = new long[stateCount][];
+        final int[] stack = new int[stateCount];
+        for (int id = 0; id < stateCount; id++) {
+            final long[] closure = ActiveStateSet.newWords(stateCount);
+            closure[id >>> 6] |= 1L << id;
+            int top = 0;
+            stack[top++] = id;
+            while (top > 0) {
+                final IdentityRegistry<Transition> transitions = stateMachine.getState(stack[--top]).managedTransitions;
+                for (int i = 0; i < transitions.size(); i++) {
+                    final Transition transition = transitions.get(i);
+                    if (transition instanceof SymbolTransition
+                            && ((SymbolTransition) transition).symbol == SymbolTransition.EPSILON) {
+                        final int target = stateMachine.getStateId(transition.endState);
+                        if ((closure[target >>> 6] & (1L << target)) == 0) {
+                            closure[target >>> 6] |= 1L << target;
+                            stack[top++] = target;
+                        }
+                    }
+                }
+            }
+            closures[id] = closure;
+        }
+
+        final long[] accepting = ActiveStateSet.newWords(stateCount);
+        final int[][] symbols = new int[stateCount][];
+        final long[][][] successors = new long[stateCount][][];
+        for (int id = 0; id < stateCount; id++) {
+            final State state = stateMachine.getState(id);
+            if (state.isAccepting()) {
+                accepting[id >>> 6] |= 1L << id;
+            }
+            final Map<Integer, long[]> bySymbol = new TreeMap<>();
+            final IdentityRegistry<Transition> transitions = state.managedTransitions;
+            for (int i = 0; i < transitions.size(); i++) {
+                final Transition transition = transitions.get(i);
+                if (transition instanceof SymbolTransition
+                        && ((SymbolTransition) transition).symbol != SymbolTransition.EPSILON) {
+                    final long[] target = bySymbol.computeIfAbsent(((SymbolTransition) transition).symbol,
+                            symbol -> ActiveStateSet.newWords(stateCount));
+                    ActiveStateSet.or(target, closures[stateMachine.getStateId(transition.endState)]);
+                }
+            }
+            symbols[id] = new int[bySymbol.size()];
+            successors[id] = new long[bySymbol.size()][];
+            int i = 0;
+            for (Map.Entry<Integer, long[]> entry : bySymbol.entrySet()) {
+                symbols[id][i] = entry.getKey();
+                successors[id][i++] = entry.getValue();
+            }
+        }
+
+        return new Automaton(stateCount, closures[stateMachine.getEntryStateId()], accepting, symbols, successors);
+    }
+
+    /**
+     * Gets the states reachable from a state by one symbol, including their epsilon closure.
+     * @return the states as a bitset, or null if there are none
+     */
+    long[] successors(int stateId, int symbol) {
+        final int[] stateSymbols = symbols[stateId];
+        int low = 0, high = stateSymbols.length - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int middleSymbol = stateSymbols[middle];
+            if (middleSymbol < symbol) {
+                low = middle + 1;
+            } else if (middleSymbol > symbol) {
+                high = middle - 1;
+            } else {
+                return successors[stateId][middle];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Advances a set of states by one symbol.
+     * @param from the current states
+     * @param to receives the next states. Must not be the same array as from.
+     */
+    void step(long[] from, int symbol, long[] to) {
+        for (int i = 0; i < to.length; i++) {
+            to[i] = 0;
+        }
+        for (int w = 0; w < from.length; w++) {
+            long word = from[w];
+            while (word != 0) {
+                final long[] next = successors((w << 6) + Long.numberOfTrailingZeros(word), symbol);
+                if (next != null) {
+                    ActiveStateSet.or(to, next);
+                }
+                word &= word - 1;
+            }
+        }
+    }
+}
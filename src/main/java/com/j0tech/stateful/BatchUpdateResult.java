@@ -0,0 +1,85 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of a call to {@link BatchUpdater#updateAll(StateMachinePool, java.util.function.IntFunction)}.
+ */
+public final class BatchUpdateResult {
+
+    private final int instanceCount, chunkCount;
+
+    private final long elapsedNanos;
+
+    BatchUpdateResult(int instanceCount, int chunkCount, long elapsedNanos) {
+        this.instanceCount = instanceCount;
+        this.chunkCount = chunkCount;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Gets the number of instances that were updated.
+     * @return the number of instances
+     */
+    public int getInstanceCount() {
+        return instanceCount;
+    }
+
+    /**
+     * Gets the number of chunks the instances were split into.
+     * @return the number of chunks
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Gets how long the update took, in nanoseconds.
+     * @return the elapsed time
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Gets the number of instances updated per second.
+     * @return the throughput
+     */
+    public double getThroughput() {
+        if (elapsedNanos <= 0) {
+            return 0;
+        }
+        return instanceCount * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "%d instances in %d chunks, %.3f ms (%.0f instances/s)",
+                instanceCount, chunkCount, elapsedNanos / 1e6, getThroughput());
+    }
+}
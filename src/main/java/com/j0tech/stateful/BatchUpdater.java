@@ -0,0 +1,180 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+/**
+ * Updates every instance of a {@link StateMachinePool} in one call, by splitting the pool into chunks of consecutive
+ * instances and updating the chunks in parallel.
+ *
+ * Each instance belongs to exactly one chunk, and is updated exactly once per call, so updates to the same instance
+ * are never reordered or run concurrently, and no per-instance locking is needed. The call returns once every
+ * instance has been updated.
+ */
+public final class BatchUpdater {
+
+    /**
+     * The chunk size used by {@link #BatchUpdater()}.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    private final Executor executor;
+
+    private final int chunkSize;
+
+    /**
+     * Constructs a batch updater that runs on the common {@link ForkJoinPool}, with the default chunk size.
+     */
+    public BatchUpdater() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructs a batch updater that runs chunks on the given executor. If the executor is a {@link ForkJoinPool},
+     * the pool is split recursively, so idle workers can steal chunks from busy ones.
+     * @param executor the executor chunks are run on
+     * @param chunkSize the maximum number of instances in one chunk
+     */
+    public BatchUpdater(Executor executor, int chunkSize) {
+        if (executor == null) {
+            throw new NullPointerException("Executor cannot be null");
+        }
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        }
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Updates every instance in a pool.
+     *
+     * Note: the pool must not be resized, and its instances must not be updated by anything else, while this call is
+     * running.
+     * @param pool the pool to update
+     * @param contexts supplies the context object for each instance index. It is called from several threads at once.
+     * @return the number of instances updated, and how long it took
+     * @throws RuntimeException the first exception thrown while updating a chunk, once every chunk has finished
+     */
+    public BatchUpdateResult updateAll(StateMachinePool pool, IntFunction<?> contexts) {
+        final int instanceCount = pool.getCapacity();
+        final int chunkCount = (instanceCount + chunkSize - 1) / chunkSize;
+        final long startTime = System.nanoTime();
+        if (chunkCount <= 1) {
+            pool.updateRange(0, instanceCount, contexts);
+        } else if (executor instanceof ForkJoinPool) {
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            ((ForkJoinPool) executor).invoke(new UpdateAction(pool, contexts, 0, instanceCount, failure));
+            rethrow(failure.get());
+        } else {
+            runOnExecutor(pool, contexts, instanceCount, chunkCount);
+        }
+        return new BatchUpdateResult(instanceCount, chunkCount, System.nanoTime() - startTime);
+    }
+
+    private void runOnExecutor(StateMachinePool pool, IntFunction<?> contexts, int instanceCount, int chunkCount) {
+        final CountDownLatch remaining = new CountDownLatch(chunkCount);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int from = 0; from < instanceCount; from += chunkSize) {
+            final int chunkFrom = from;
+            final int chunkTo = Math.min(from + chunkSize, instanceCount);
+            executor.execute(() -> {
+                try {
+                    pool.updateRange(chunkFrom, chunkTo, contexts);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    remaining.countDown();
+                }
+            });
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                remaining.await();
+                break;
+            } catch (InterruptedException e) {
+                // the chunks are already running, so wait for them anyway
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        rethrow(failure.get());
+    }
+
+    private static void rethrow(Throwable t) {
+        // rethrow the chunk's own exception, rather than the copy a ForkJoinTask would make of it
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    private final class UpdateAction extends RecursiveAction {
+
+        private final StateMachinePool pool;
+        private final IntFunction<?> contexts;
+        private final int from, to;
+        private final AtomicReference<Throwable> failure;
+
+        UpdateAction(StateMachinePool pool, IntFunction<?> contexts, int from, int to,
+                AtomicReference<Throwable> failure) {
+            this.pool = pool;
+            this.contexts = contexts;
+            this.from = from;
+            this.to = to;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            final int chunks = (to - from + chunkSize - 1) / chunkSize;
+            if (chunks <= 1) {
+                try {
+                    pool.updateRange(from, to, contexts);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            } else {
+                // split on a chunk boundary, so the pool ends up in the same chunks as on any other executor
+                final int middle = from + (chunks >>> 1) * chunkSize;
+                invokeAll(new UpdateAction(pool, contexts, from, middle, failure),
+                        new UpdateAction(pool, contexts, middle, to, failure));
+            }
+        }
+    }
+}
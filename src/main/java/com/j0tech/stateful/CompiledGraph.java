@@ -0,0 +1,218 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The graph of a frozen {@link StateMachine}, laid out as flat arrays indexed by state ID.
+ *
+ * The polled, that is not event-driven, transitions are stored in compressed sparse row form: the transitions out of
+ * state {@code s} are at indices {@code offsets[s]} to {@code offsets[s + 1]}, with their end state IDs in
+ * {@code targets} and the transitions themselves, whose guards are checked, in {@code guards}, sorted by descending
+ * {@link Transition#getPriority() priority}. Walking the transitions
+ * of a state is index arithmetic over contiguous arrays, with no iterator and no pointer chasing.
+ *
+ * The guards of transitions that declare their {@link Signal signals} are cached in {@code guardCache}, as the sum of
+ * the signals' versions shifted left by one, with the guard's result in the low bit. The cache is shared by every
+ * instance of the definition, as such guards do not depend on their context.
+ */
+final class CompiledGraph {
+
+    final State[] states;
+
+    final int[] offsets;
+
+    final int[] targets;
+
+    final Transition[] guards;
+
+    /**
+     * The ID of each transition in {@code guards}, in {@code transitions}.
+     */
+    final int[] transitionIds;
+
+    /**
+     * The signals each transition in {@code guards} depends on, or null if its guard is evaluated on every update.
+     */
+    final Signal<?>[][] dependencies;
+
+    private final AtomicLongArray guardCache;
+
+    /**
+     * Every transition of the state machine, polled or event-driven, numbered in state ID order.
+     */
+    final IdentityRegistry<Transition> transitions;
+
+    /**
+     * A hash of the shape of the graph; see {@link StateMachine#getDefinitionFingerprint()}.
+     */
+    final long fingerprint;
+
+    CompiledGraph(StateMachine stateMachine) {
+        final int stateCount = stateMachine.getStateCount();
+        states = new State[stateCount];
+        offsets = new int[stateCount + 1];
+        transitions = new IdentityRegistry<>();
+        for (int id = 0; id < stateCount; id++) {
+            states[id] = stateMachine.getState(id);
+            final IdentityRegistry<Transition> stateTransitions = states[id].managedTransitions;
+            int polled = 0;
+            for (int i = 0; i < stateTransitions.size(); i++) {
+                transitions.register(stateTransitions.get(i));
+                if (!stateTransitions.get(i).isEventDriven()) {
+                    polled++;
+                }
+            }
+            offsets[id + 1] = offsets[id] + polled;
+        }
+
+        targets = new int[offsets[stateCount]];
+        guards = new Transition[offsets[stateCount]];
+        for (int id = 0; id < stateCount; id++) {
+            final IdentityRegistry<Transition> stateTransitions = states[id].managedTransitions;
+            int index = offsets[id];
+            for (int i = 0; i < stateTransitions.size(); i++) {
+                final Transition transition = stateTransitions.get(i);
+                if (!transition.isEventDriven()) {
+                    // insert in priority order, keeping the order the transitions were added among equal priorities
+                    int slot = index++;
+                    while (slot > offsets[id] && guards[slot - 1].getPriority() < transition.getPriority()) {
+                        guards[slot] = guards[slot - 1];
+                        targets[slot] = targets[slot - 1];
+                        slot--;
+                    }
+                    targets[slot] = stateMachine.getStateId(transition.endState);
+                    guards[slot] = transition;
+                }
+            }
+        }
+        transitionIds = new int[guards.length];
+        for (int i = 0; i < guards.length; i++) {
+            transitionIds[i] = transitions.idOf(guards[i]);
+        }
+        dependencies = new Signal<?>[guards.length][];
+        guardCache = new AtomicLongArray(guards.length);
+        for (int i = 0; i < guards.length; i++) {
+            final Signal<?>[] signals = guards[i].dependencies;
+            dependencies[i] = signals == null ? null : signals.clone();
+            guardCache.set(i, -1);
+        }
+        fingerprint = fingerprint(stateMachine);
+    }
+
+    /**
+     * Checks the guard at an index with {@link Transition#shouldActivate()}, or gets its cached result if it depends
+     * on signals that have not changed since it was last evaluated.
+     */
+    boolean shouldActivate(int index, MetricsProbe probe) {
+        final long version = versionOf(index);
+        if (version >= 0) {
+            final long cached = guardCache.get(index);
+            if (cached >>> 1 == version) {
+                return (cached & 1) != 0;
+            }
+        }
+        probe.guardEvaluated(transitionIds[index]);
+        return store(index, version, guards[index].shouldActivate());
+    }
+
+    /**
+     * Checks the guard at an index with {@link Transition#shouldActivate(Object)}, or gets its cached result if it
+     * depends on signals that have not changed since it was last evaluated.
+     */
+    boolean shouldActivate(int index, Object context, MetricsProbe probe) {
+        final long version = versionOf(index);
+        if (version >= 0) {
+            final long cached = guardCache.get(index);
+            if (cached >>> 1 == version) {
+                return (cached & 1) != 0;
+            }
+        }
+        probe.guardEvaluated(transitionIds[index]);
+        return store(index, version, guards[index].shouldActivate(context));
+    }
+
+    private long versionOf(int index) {
+        final Signal<?>[] signals = dependencies[index];
+        return signals == null ? -1 : Signal.sumVersions(signals);
+    }
+
+    private boolean store(int index, long version, boolean result) {
+        // the version was read before the guard, so a signal changing meanwhile leaves the cached result dirty
+        if (version >= 0) {
+            guardCache.set(index, version << 1 | (result ? 1 : 0));
+        }
+        return result;
+    }
+
+    private long fingerprint(StateMachine stateMachine) {
+        // 64 bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        hash = mix(hash, states.length);
+        hash = mix(hash, stateMachine.getEntryState() == null ? -1 : stateMachine.getEntryStateId());
+        for (State state : states) {
+            hash = mix(hash, state.getClass().getName());
+            hash = mix(hash, state.managedTransitions.size());
+        }
+        for (int i = 0; i < transitions.size(); i++) {
+            final Transition transition = transitions.get(i);
+            hash = mix(hash, transition.getClass().getName());
+            hash = mix(hash, stateMachine.getStateId(transition.endState));
+            hash = mix(hash, transition.getPriority());
+            for (Class<?> eventType : transition.eventTypes) {
+                hash = mix(hash, eventType.getName());
+            }
+            // the labels of built-in transitions are part of the graph's shape too
+            if (transition instanceof SymbolTransition) {
+                hash = mix(hash, ((SymbolTransition) transition).symbol);
+            } else if (transition instanceof TimedTransition) {
+                final TimedTransition timed = (TimedTransition) transition;
+                hash = mix(hash, timed.hasDeadline ? 1 : 0);
+                hash = mix(hash, timed.hasDeadline ? timed.deadlineMillis : timed.delayMillis);
+            }
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        return mix(mix(hash, (int) value), (int) (value >>> 32));
+    }
+
+    private static long mix(long hash, int value) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            hash = (hash ^ ((value >>> shift) & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, String value) {
+        hash = mix(hash, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            hash = mix(hash, value.charAt(i));
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import com.j0tech.stateful.exceptions.StateNotManagedException;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A {@link StateMachine} compiled by {@link StateMachineCompiler}. It keeps a current state of its own, and can also
+ * update instances whose current state is held by the caller, as state IDs; see {@link #step(int)}.
+ *
+ * Note: compiled state machines are not synchronized.
+ */
+public final class CompiledStateMachine {
+
+    private final StateMachine definition;
+
+    private final IntUnaryOperator update;
+
+    private int currentStateId;
+
+    CompiledStateMachine(StateMachine definition, IntUnaryOperator update, int entryStateId) {
+        this.definition = definition;
+        this.update = update;
+        currentStateId = entryStateId;
+    }
+
+    /**
+     * Gets the state machine this was compiled from.
+     * @return the definition
+     */
+    public StateMachine getDefinition() {
+        return definition;
+    }
+
+    /**
+     * Updates the state machine, taking at most one transition.
+     */
+    public void update() {
+        currentStateId = update.applyAsInt(currentStateId);
+    }
+
+    /**
+     * Updates an instance whose current state is held by the caller, taking at most one transition.
+     * @param stateId ID of the instance's current state, which is the order it was added to the definition in
+     * @return ID of the instance's state after the update
+     */
+    public int step(int stateId) {
+        if (stateId < 0 || stateId >= definition.getStateCount()) {
+            throw new IndexOutOfBoundsException("Invalid state ID " + stateId);
+        }
+        return update.applyAsInt(stateId);
+    }
+
+    /**
+     * Gets the state the state machine is currently in.
+     * @return the current state
+     */
+    public State getCurrentState() {
+        return definition.getState(currentStateId);
+    }
+
+    /**
+     * Forces the state machine to switch to the specified state. Like {@link StateMachine#setCurrentState(State)},
+     * this calls {@link State#onExitState()} on the current state and {@link State#onEnterState()} on the new one.
+     * @param state the state to switch to
+     */
+    public void setCurrentState(State state) {
+        final int stateId = definition.getStateId(state);
+        if (stateId < 0) {
+            throw new StateNotManagedException(state);
+        }
+        definition.getState(currentStateId).onExitState();
+        currentStateId = stateId;
+        state.onEnterState();
+    }
+}
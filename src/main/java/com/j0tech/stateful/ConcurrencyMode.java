@@ -0,0 +1,55 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+/**
+ * How a {@link StateMachine} handles calls from several threads at once.
+ *
+ * @see StateMachine#setConcurrencyMode(ConcurrencyMode)
+ */
+public enum ConcurrencyMode {
+
+    /**
+     * Every call that reads or changes the current state, including the callbacks it makes, holds the state machine's
+     * monitor. Calls are serialized, and callbacks never overlap.
+     */
+    SYNCHRONIZED,
+
+    /**
+     * The current state is published through an atomic reference, and changed by compare-and-set, without taking any
+     * lock. {@link StateMachine#getCurrentState()} is wait-free.
+     *
+     * Every change of state is linearizable: a transition taken by {@link StateMachine#update()} or
+     * {@link StateMachine#fire(Object)} takes effect at the moment its compare-and-set from the state its guard was
+     * checked in succeeds, and {@link StateMachine#setCurrentState(State)} takes effect at the moment it swaps the
+     * current state in. If another thread changes the state first, the transition is dropped, so a transition is
+     * never taken out of a state the machine has already left. Each update takes at most one transition, except in
+     * {@link StepMode#RUN_TO_COMPLETION} mode, where every transition of the chain is its own compare-and-set.
+     *
+     * Callbacks run after the change has taken effect, outside any lock, and may overlap with callbacks made by other
+     * threads, so they must be thread-safe.
+     */
+    LOCK_FREE
+}
@@ -0,0 +1,488 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import com.j0tech.stateful.exceptions.DefinitionMismatchException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link TransitionJournal} that appends fixed-size binary records to segment files in a directory.
+ *
+ * Recording a transition only claims a slot in a ring buffer with an atomic increment, and fills it in. A background
+ * thread drains the ring in batches, writes each batch to the current segment and forces it to storage, so that one
+ * fsync commits every record that arrived while the previous one was in progress. When a segment is full, the next
+ * one is started. {@link #awaitDurable()} waits until everything recorded so far has been committed.
+ *
+ * Each segment starts with a 32 byte header holding the definition's fingerprint, see
+ * {@link StateMachine#getDefinitionFingerprint()}, followed by {@link #RECORD_SIZE} byte records: the instance ID,
+ * the IDs of the state left and entered, the transition ID, a CRC-32 of the record, and the time it was recorded,
+ * in milliseconds since the epoch. A record that was torn by a crash fails its checksum, and ends the replay of its
+ * segment. As a journal that is opened again starts a new segment, the records appended after a restart are still
+ * replayed.
+ *
+ * Note: records of transitions that are taken concurrently on different instances are appended in the order their
+ * slots were claimed. Changes of state of any one instance are recorded in order, as long as it is only updated by
+ * one thread at a time.
+ */
+public final class FileTransitionJournal implements TransitionJournal, Closeable {
+
+    /**
+     * The size of one record, in bytes.
+     */
+    public static final int RECORD_SIZE = 32;
+
+    /**
+     * The default number of records the ring buffer holds before recording blocks.
+     */
+    public static final int DEFAULT_RING_CAPACITY = 1 << 16;
+
+    /**
+     * The default size of a segment, in bytes.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+
+    private static final int MAGIC = 0x53544a4c;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int MAX_BATCH = 4096;
+
+    private static final long IDLE_NANOS = 1_000_000;
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    /**
+     * Receives the records of a journal, as they are replayed.
+     *
+     * @see #replay(Path, RecordVisitor)
+     */
+    public interface RecordVisitor {
+
+        /**
+         * Called for each record, in the order they were appended.
+         * @param instance ID of the instance that changed state
+         * @param fromState ID of the state it left
+         * @param toState ID of the state it entered
+         * @param transitionId ID of the transition it took, or -1 if none
+         * @param timestamp the time the change was recorded, in milliseconds since the epoch
+         */
+        void visit(long instance, int fromState, int toState, int transitionId, long timestamp);
+    }
+
+    private final Path directory;
+
+    private final long fingerprint;
+
+    private final long recordsPerSegment;
+
+    // each slot holds the instance, the state IDs packed into one long, the transition ID and the timestamp
+    private final long[] ring;
+
+    private final AtomicLongArray published;
+
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile long head, durable;
+
+    private volatile boolean closed;
+
+    private volatile IOException failure;
+
+    private final Object durableLock = new Object();
+
+    private final Thread writer;
+
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(MAX_BATCH * RECORD_SIZE);
+
+    private final CRC32 checksum = new CRC32();
+
+    private FileChannel segment;
+
+    private long segmentNumber, segmentRecords;
+
+    /**
+     * Opens a journal with the default ring capacity and segment size.
+     * @param definition the state machine whose transitions are recorded, which is frozen if it has not been already
+     * @param directory the directory to write segments to, which is created if needed
+     * @throws IOException if the directory or the first segment cannot be created
+     */
+    public FileTransitionJournal(StateMachine definition, Path directory) throws IOException {
+        this(definition, directory, DEFAULT_RING_CAPACITY, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens a journal. Segments already in the directory are kept, and new records go to a new segment after them.
+     * @param definition the state machine whose transitions are recorded, which is frozen if it has not been already
+     * @param directory the directory to write segments to, which is created if needed
+     * @param ringCapacity the number of records the ring buffer holds, rounded up to a power of two
+     * @param segmentSize the size a segment may grow to, in bytes, before the next one is started
+     * @throws IOException if the directory or the first segment cannot be created
+     */
+    public FileTransitionJournal(StateMachine definition, Path directory, int ringCapacity, long segmentSize)
+            throws IOException {
+        if (ringCapacity < 1 || ringCapacity > 1 << 28) {
+            throw new IllegalArgumentException("The ring capacity must be between 1 and 2^28");
+        }
+        if (segmentSize < HEADER_SIZE + RECORD_SIZE || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format(Locale.getDefault(), "Segments must be between %d " +
+                    "and %d bytes long", HEADER_SIZE + RECORD_SIZE, Integer.MAX_VALUE));
+        }
+        this.directory = directory;
+        fingerprint = definition.getDefinitionFingerprint();
+        recordsPerSegment = (segmentSize - HEADER_SIZE) / RECORD_SIZE;
+        final int capacity = ringCapacity == 1 ? 1 : Integer.highestOneBit(ringCapacity - 1) << 1;
+        mask = capacity - 1;
+        ring = new long[capacity * 4];
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+
+        Files.createDirectories(directory);
+        final List<Path> existing = listSegments(directory);
+        segmentNumber = existing.isEmpty() ? 0 : segmentNumber(existing.get(existing.size() - 1)) + 1;
+        openSegment();
+
+        writer = new Thread(this::writeLoop, "stateful-journal-" + directory.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records a change of state. Blocks while the ring buffer is full.
+     * @throws IllegalStateException if the journal has been closed
+     * @throws UncheckedIOException if writing the journal has failed
+     */
+    @Override
+    public void record(long instance, int fromState, int toState, int transitionId) {
+        if (closed) {
+            // the writer closes the journal when it fails, after setting the failure, so report the failure's cause
+            final IOException failure = this.failure;
+            if (failure != null) {
+                throw new UncheckedIOException("Writing the journal failed", failure);
+            }
+            throw new IllegalStateException("This journal has been closed");
+        }
+        final long timestamp = System.currentTimeMillis();
+        final long sequence = tail.getAndIncrement();
+        while (sequence - head > mask) {
+            final IOException failure = this.failure;
+            if (failure != null) {
+                throw new UncheckedIOException("Writing the journal failed", failure);
+            }
+            Thread.onSpinWait();
+        }
+        final int slot = (int) sequence & mask;
+        final int offset = slot << 2;
+        ring[offset] = instance;
+        ring[offset + 1] = (long) fromState << 32 | (toState & 0xffffffffL);
+        ring[offset + 2] = transitionId;
+        ring[offset + 3] = timestamp;
+        published.lazySet(slot, sequence);
+    }
+
+    /**
+     * Blocks until every record appended before this call has been forced to storage.
+     * @throws IOException if writing the journal has failed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void awaitDurable() throws IOException, InterruptedException {
+        final long target = tail.get();
+        LockSupport.unpark(writer);
+        synchronized (durableLock) {
+            while (durable < target) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (!writer.isAlive()) {
+                    throw new IllegalStateException("This journal has been closed");
+                }
+                durableLock.wait(IDLE_NANOS / 1_000_000);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Commits every record appended so far, and stops the background thread. Records can no longer be appended
+     * afterwards, so the state machines recording into this journal must be stopped first.
+     * @throws IOException if writing the journal has failed
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                final long first = head;
+                int count = 0;
+                final long limit = Math.min(MAX_BATCH, recordsPerSegment - segmentRecords);
+                while (count < limit && published.get((int) (first + count) & mask) == first + count) {
+                    count++;
+                }
+                if (count == 0) {
+                    if (segmentRecords == recordsPerSegment) {
+                        rollSegment();
+                    } else if (closed && tail.get() == first) {
+                        break;
+                    } else {
+                        LockSupport.parkNanos(this, IDLE_NANOS);
+                    }
+                    continue;
+                }
+
+                batch.clear();
+                for (int i = 0; i < count; i++) {
+                    encode((int) (first + i) & mask);
+                }
+                // the slots have been copied out, so producers may reuse them while the batch is being written
+                head = first + count;
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    segment.write(batch);
+                }
+                segment.force(false);
+                segmentRecords += count;
+                durable = first + count;
+                synchronized (durableLock) {
+                    durableLock.notifyAll();
+                }
+            }
+            segment.close();
+        } catch (IOException e) {
+            failure = e;
+            closed = true;
+            try {
+                segment.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+        } finally {
+            synchronized (durableLock) {
+                durableLock.notifyAll();
+            }
+        }
+    }
+
+    private void encode(int slot) {
+        final int offset = slot << 2;
+        final int start = batch.position();
+        batch.putLong(ring[offset])
+                .putLong(ring[offset + 1])
+                .putInt((int) ring[offset + 2])
+                .putInt(0)
+                .putLong(ring[offset + 3]);
+        batch.putInt(start + 20, checksum(batch, start));
+    }
+
+    /**
+     * Computes the checksum of the record at the given position, over every field but the checksum itself.
+     */
+    private int checksum(ByteBuffer buffer, int start) {
+        checksum.reset();
+        final ByteBuffer view = buffer.duplicate();
+        view.limit(start + 20).position(start);
+        checksum.update(view);
+        view.limit(start + RECORD_SIZE).position(start + 24);
+        checksum.update(view);
+        return (int) checksum.getValue();
+    }
+
+    private void openSegment() throws IOException {
+        segment = FileChannel.open(directory.resolve(segmentName(segmentNumber)), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC)
+                .putInt(VERSION)
+                .putLong(fingerprint)
+                .putLong(segmentNumber)
+                .putInt(RECORD_SIZE)
+                .flip();
+        header.limit(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            segment.write(header);
+        }
+        segment.force(true);
+        segmentRecords = 0;
+    }
+
+    private void rollSegment() throws IOException {
+        segment.close();
+        segmentNumber++;
+        openSegment();
+    }
+
+    /**
+     * Replays every record of a journal, and puts each instance of a pool in the last state recorded for it. The pool
+     * is grown to hold every instance that was recorded, if needed, and instances without records are left as they
+     * are.
+     * @param directory the journal's directory
+     * @param pool the pool, whose definition must have the same fingerprint as the journaled one
+     * @return the number of records replayed
+     * @throws IOException if reading the journal fails, or it is not valid
+     * @throws DefinitionMismatchException if the journal was written for a state machine with a different definition
+     */
+    public static long replay(Path directory, StateMachinePool pool) throws IOException {
+        final int stateCount = pool.getDefinition().getStateCount();
+        return replay(directory, pool.getDefinition().getDefinitionFingerprint(), true,
+                new RecordVisitor() {
+                    @Override
+                    public void visit(long instance, int fromState, int toState, int transitionId, long timestamp) {
+                        if (instance < 0 || instance >= Integer.MAX_VALUE || toState < 0 || toState >= stateCount) {
+                            throw new UncheckedIOException(new IOException(String.format(Locale.getDefault(),
+                                    "Record of instance %d has invalid state ID %d", instance, toState)));
+                        }
+                        final int index = (int) instance;
+                        if (index >= pool.states.length) {
+                            pool.ensureCapacity(index + 1);
+                        }
+                        pool.states[index] = toState;
+                    }
+                });
+    }
+
+    /**
+     * Replays every record of a journal, in the order they were appended. Each segment is replayed up to its first
+     * record that is partial, torn or corrupt, and the segments after it are replayed as usual.
+     * @param directory the journal's directory
+     * @param visitor receives each record
+     * @return the number of records replayed
+     * @throws IOException if reading the journal fails, or it is not valid
+     */
+    public static long replay(Path directory, RecordVisitor visitor) throws IOException {
+        return replay(directory, 0, false, visitor);
+    }
+
+    private static long replay(Path directory, long fingerprint, boolean checkFingerprint, RecordVisitor visitor)
+            throws IOException {
+        final CRC32 checksum = new CRC32();
+        long replayed = 0;
+        try {
+            for (Path file : listSegments(directory)) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    final long size = channel.size();
+                    if (size < HEADER_SIZE) {
+                        // the segment was created, but its header never made it to storage
+                        continue;
+                    }
+                    final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                        throw new IOException(String.format(Locale.getDefault(), "%s is not a journal segment",
+                                file.toString()));
+                    }
+                    final long segmentFingerprint = buffer.getLong();
+                    if (checkFingerprint && segmentFingerprint != fingerprint) {
+                        throw new DefinitionMismatchException(fingerprint, segmentFingerprint);
+                    }
+                    for (int position = HEADER_SIZE; position + RECORD_SIZE <= size; position += RECORD_SIZE) {
+                        checksum.reset();
+                        buffer.limit(position + 20).position(position);
+                        checksum.update(buffer);
+                        buffer.limit(position + RECORD_SIZE).position(position + 24);
+                        checksum.update(buffer);
+                        buffer.limit((int) size);
+                        if ((int) checksum.getValue() != buffer.getInt(position + 20)) {
+                            // a torn or corrupt tail, like a partial record, only ends this segment
+                            break;
+                        }
+                        final long states = buffer.getLong(position + 8);
+                        visitor.visit(buffer.getLong(position), (int) (states >>> 32), (int) states,
+                                buffer.getInt(position + 16), buffer.getLong(position + 24));
+                        replayed++;
+                    }
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return replayed;
+    }
+
+    private static List<Path> listSegments(Path directory) throws IOException {
+        final List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                segments.add(file);
+            }
+        }
+        // segment names are zero-padded, so they sort in the order they were written
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static String segmentName(long number) {
+        return String.format(Locale.ROOT, "%020d%s", number, SEGMENT_SUFFIX);
+    }
+
+    private static long segmentNumber(Path file) throws IOException {
+        final String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format(Locale.getDefault(), "%s is not a journal segment", name), e);
+        }
+    }
+}
@@ -0,0 +1,435 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import com.j0tech.stateful.exceptions.NoEntryStateSetException;
+import com.j0tech.stateful.exceptions.StateMachineFrozenException;
+import com.j0tech.stateful.exceptions.StateNotManagedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shrinks the graph of a {@link StateMachine} before it is frozen, by removing the states that cannot be reached
+ * from the entry state, and, for state machines used as recognizers, by merging equivalent states and removing dead
+ * ones.
+ *
+ * Merging only applies to states that are declared side effect free with {@link State#isSideEffectFree()}, whose
+ * transitions are all side effect free, non-epsilon {@link SymbolTransition}s, with at most one per symbol. Two such
+ * states are equivalent when they accept the same inputs, as decided by {@link State#isAccepting()}, and they are
+ * found by Hopcroft's partition refinement. A state is dead when no accepting state can be reached from it. Dead
+ * states are only removed along with transitions into them that are side effect free, and merging and dead state
+ * removal are skipped entirely for state machines without any accepting state.
+ */
+public final class GraphOptimizer {
+
+    private GraphOptimizer() {
+
+    }
+
+    /**
+     * Optimizes the graph of a state machine in place. Merged states are replaced by one representative, which is the
+     * entry state when it is one of them, and transitions that pointed to them are redirected to it.
+     * @param stateMachine the state machine, which must not be frozen yet
+     * @return how many states and transitions were removed
+     * @throws StateMachineFrozenException if the state machine has been frozen
+     * @throws NoEntryStateSetException if the state machine has no entry state
+     * @throws IllegalArgumentException if the state machine has composite states; see {@link State#addRegion(Region)}
+     */
+    public static OptimizationResult optimize(StateMachine stateMachine) {
+        if (stateMachine.isFrozen()) {
+            throw new StateMachineFrozenException();
+        }
+        final State entryState = stateMachine.getEntryState();
+        if (entryState == null) {
+            throw new NoEntryStateSetException();
+        }
+        for (int i = 0; i < stateMachine.getStateCount(); i++) {
+            final State state = stateMachine.getState(i);
+            if (state.regions.length != 0 || state.parentRegion != null) {
+                throw new IllegalArgumentException("State machines with composite states cannot be optimized");
+            }
+        }
+
+        // find the states reachable from the entry state, and give them local IDs in registration order
+        final int stateCount = stateMachine.getStateCount();
+        int transitionCount = 0;
+        final boolean[] reachable = new boolean[stateCount];
+        final int[] queue = new int[stateCount];
+        int head = 0, tail = 0;
+        queue[tail++] = stateMachine.getStateId(entryState);
+        reachable[queue[0]] = true;
+        while (head < tail) {
+            final IdentityRegistry<Transition> transitions = stateMachine.getState(queue[head++]).managedTransitions;
+            for (int i = 0; i < transitions.size(); i++) {
+                final State endState = transitions.get(i).endState;
+                final int target = stateMachine.getStateId(endState);
+                if (target < 0) {
+                    throw new StateNotManagedException(endState, "Transition points to unmanaged state");
+                }
+                if (!reachable[target]) {
+                    reachable[target] = true;
+                    queue[tail++] = target;
+                }
+            }
+        }
+        final List<State> states = new ArrayList<>(tail);
+        final int[] local = new int[stateCount];
+        for (int id = 0; id < stateCount; id++) {
+            transitionCount += stateMachine.getState(id).managedTransitions.size();
+            local[id] = reachable[id] ? states.size() : -1;
+            if (reachable[id]) {
+                states.add(stateMachine.getState(id));
+            }
+        }
+        final int unreachableCount = stateCount - states.size();
+
+        final int[] representative = new int[states.size()];
+        for (int i = 0; i < representative.length; i++) {
+            representative[i] = i;
+        }
+        final boolean[] dead = new boolean[states.size()];
+        boolean anyAccepting = false;
+        for (State state : states) {
+            anyAccepting |= state.isAccepting();
+        }
+        if (anyAccepting) {
+            new Minimizer(stateMachine, states, local).run(local[stateMachine.getStateId(entryState)],
+                    representative, dead);
+        }
+
+        // keep dead states that are entered by transitions with side effects, since those cannot be removed
+        for (int i = 0; i < states.size(); i++) {
+            if (representative[i] != i || dead[i]) {
+                continue;
+            }
+            final IdentityRegistry<Transition> transitions = states.get(i).managedTransitions;
+            for (int j = 0; j < transitions.size(); j++) {
+                final Transition transition = transitions.get(j);
+                final int target = local[stateMachine.getStateId(transition.endState)];
+                if (dead[target] && !transition.isSideEffectFree()) {
+                    dead[target] = false;
+                }
+            }
+        }
+
+        // rebuild the graph out of the surviving states
+        int deadCount = 0, mergedCount = 0, remainingTransitionCount = 0;
+        final List<State> survivors = new ArrayList<>();
+        for (int i = 0; i < states.size(); i++) {
+            if (dead[i]) {
+                deadCount++;
+                continue;
+            }
+            if (representative[i] != i) {
+                mergedCount++;
+                continue;
+            }
+            final State state = states.get(i);
+            final IdentityRegistry<Transition> transitions = state.managedTransitions;
+            final List<Transition> kept = new ArrayList<>(transitions.size());
+            for (int j = 0; j < transitions.size(); j++) {
+                final Transition transition = transitions.get(j);
+                final int target = local[stateMachine.getStateId(transition.endState)];
+                if (dead[target]) {
+                    continue;
+                }
+                transition.endState = states.get(representative[target]);
+                if (!isDuplicate(kept, transition)) {
+                    kept.add(transition);
+                }
+            }
+            state.replaceTransitions(kept);
+            remainingTransitionCount += kept.size();
+            survivors.add(state);
+        }
+        stateMachine.replaceStates(survivors);
+
+        return new OptimizationResult(unreachableCount, deadCount, mergedCount,
+                transitionCount - remainingTransitionCount);
+    }
+
+    private static boolean isDuplicate(List<Transition> kept, Transition transition) {
+        if (!(transition instanceof SymbolTransition) || !transition.isSideEffectFree()) {
+            return false;
+        }
+        for (Transition existing : kept) {
+            if (existing instanceof SymbolTransition && existing.isSideEffectFree()
+                    && ((SymbolTransition) existing).symbol == ((SymbolTransition) transition).symbol
+                    && existing.endState == transition.endState) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hopcroft's partition refinement, over the reachable states plus a virtual sink state that every missing
+     * transition of a mergeable state leads to. States that end up with the sink are dead.
+     */
+    private static final class Minimizer {
+
+        private final int stateCount, sink, symbolCount;
+
+        private final boolean[] mergeable;
+
+        private final boolean[] accepting;
+
+        /**
+         * For each symbol and state, the mergeable states that reach it with that symbol, in compressed-sparse-row
+         * form.
+         */
+        private final int[] inverseOffsets, inverseSources;
+
+        // the refinable partition
+        private final int[] elements, location, blockOf, blockFirst, blockEnd, marked;
+        private int blockCount;
+
+        Minimizer(StateMachine stateMachine, List<State> states, int[] local) {
+            stateCount = states.size();
+            sink = stateCount;
+            mergeable = new boolean[stateCount + 1];
+            accepting = new boolean[stateCount + 1];
+            mergeable[sink] = true;
+
+            final Map<Integer, Integer> symbols = new HashMap<>();
+            for (int i = 0; i < stateCount; i++) {
+                final State state = states.get(i);
+                accepting[i] = state.isAccepting();
+                mergeable[i] = isMergeable(state);
+                if (mergeable[i]) {
+                    final IdentityRegistry<Transition> transitions = state.managedTransitions;
+                    for (int j = 0; j < transitions.size(); j++) {
+                        symbols.putIfAbsent(((SymbolTransition) transitions.get(j)).symbol, symbols.size());
+                    }
+                }
+            }
+            symbolCount = symbols.size();
+
+            // every mergeable state, and the sink, has exactly one successor per symbol
+            final int[] delta = new int[(stateCount + 1) * symbolCount];
+            Arrays.fill(delta, sink);
+            for (int i = 0; i < stateCount; i++) {
+                if (mergeable[i]) {
+                    final IdentityRegistry<Transition> transitions = states.get(i).managedTransitions;
+                    for (int j = 0; j < transitions.size(); j++) {
+                        final SymbolTransition transition = (SymbolTransition) transitions.get(j);
+                        delta[i * symbolCount + symbols.get(transition.symbol)] =
+                                local[stateMachine.getStateId(transition.endState)];
+                    }
+                }
+            }
+
+            final int slots = (stateCount + 1) * symbolCount;
+            inverseOffsets = new int[slots + 1];
+            for (int i = 0; i <= stateCount; i++) {
+                if (mergeable[i]) {
+                    for (int c = 0; c < symbolCount; c++) {
+                        inverseOffsets[c * (stateCount + 1) + delta[i * symbolCount + c] + 1]++;
+                    }
+                }
+            }
+            for (int i = 0; i < slots; i++) {
+                inverseOffsets[i + 1] += inverseOffsets[i];
+            }
+            inverseSources = new int[inverseOffsets[slots]];
+            final int[] fill = Arrays.copyOf(inverseOffsets, slots);
+            for (int i = 0; i <= stateCount; i++) {
+                if (mergeable[i]) {
+                    for (int c = 0; c < symbolCount; c++) {
+                        inverseSources[fill[c * (stateCount + 1) + delta[i * symbolCount + c]]++] = i;
+                    }
+                }
+            }
+
+            elements = new int[stateCount + 1];
+            location = new int[stateCount + 1];
+            blockOf = new int[stateCount + 1];
+            blockFirst = new int[stateCount + 1];
+            blockEnd = new int[stateCount + 1];
+            marked = new int[stateCount + 1];
+        }
+
+        private static boolean isMergeable(State state) {
+            if (!state.isSideEffectFree()) {
+                return false;
+            }
+            final IdentityRegistry<Transition> transitions = state.managedTransitions;
+            for (int i = 0; i < transitions.size(); i++) {
+                final Transition transition = transitions.get(i);
+                if (!(transition instanceof SymbolTransition) || !transition.isSideEffectFree()
+                        || ((SymbolTransition) transition).symbol == SymbolTransition.EPSILON) {
+                    return false;
+                }
+                for (int j = 0; j < i; j++) {
+                    if (((SymbolTransition) transitions.get(j)).symbol == ((SymbolTransition) transition).symbol) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void addBlock(int[] members, int count) {
+            final int block = blockCount++;
+            final int first = block == 0 ? 0 : blockEnd[block - 1];
+            blockFirst[block] = first;
+            for (int i = 0; i < count; i++) {
+                elements[first + i] = members[i];
+                location[members[i]] = first + i;
+                blockOf[members[i]] = block;
+            }
+            blockEnd[block] = first + count;
+        }
+
+        void run(int entry, int[] representative, boolean[] dead) {
+            // initial partition: accepting mergeable states, rejecting mergeable states with the sink, and every
+            // other state on its own
+            final int[] members = new int[stateCount + 1];
+            int count = 0;
+            for (int i = 0; i < stateCount; i++) {
+                if (mergeable[i] && accepting[i]) {
+                    members[count++] = i;
+                }
+            }
+            if (count > 0) {
+                addBlock(members, count);
+            }
+            final int acceptingBlockSize = count;
+            count = 0;
+            for (int i = 0; i <= stateCount; i++) {
+                if (mergeable[i] && !accepting[i]) {
+                    members[count++] = i;
+                }
+            }
+            addBlock(members, count);
+            final int rejectingBlock = blockCount - 1;
+            for (int i = 0; i < stateCount; i++) {
+                if (!mergeable[i]) {
+                    members[0] = i;
+                    addBlock(members, 1);
+                }
+            }
+
+            // every initial block is a splitter, except the larger of the two mergeable blocks
+            final boolean[] inWorklist = new boolean[(stateCount + 1) * Math.max(1, symbolCount)];
+            final int[] worklist = new int[inWorklist.length];
+            int worklistSize = 0;
+            final int skippedBlock = acceptingBlockSize > count ? 0 : rejectingBlock;
+            for (int block = 0; block < blockCount; block++) {
+                if (block != skippedBlock) {
+                    for (int c = 0; c < symbolCount; c++) {
+                        inWorklist[block * symbolCount + c] = true;
+                        worklist[worklistSize++] = block * symbolCount + c;
+                    }
+                }
+            }
+
+            final int[] splitter = new int[stateCount + 1];
+            final int[] touched = new int[stateCount + 1];
+            while (worklistSize > 0) {
+                final int entryIndex = worklist[--worklistSize];
+                inWorklist[entryIndex] = false;
+                final int block = entryIndex / symbolCount, c = entryIndex % symbolCount;
+
+                // collect the states that reach the splitter block with this symbol
+                int splitterSize = 0;
+                for (int i = blockFirst[block]; i < blockEnd[block]; i++) {
+                    final int slot = c * (stateCount + 1) + elements[i];
+                    for (int j = inverseOffsets[slot]; j < inverseOffsets[slot + 1]; j++) {
+                        splitter[splitterSize++] = inverseSources[j];
+                    }
+                }
+
+                // move them to the front of their blocks
+                int touchedCount = 0;
+                for (int i = 0; i < splitterSize; i++) {
+                    final int state = splitter[i];
+                    final int stateBlock = blockOf[state];
+                    if (marked[stateBlock] == 0) {
+                        touched[touchedCount++] = stateBlock;
+                    }
+                    final int target = blockFirst[stateBlock] + marked[stateBlock]++;
+                    final int displaced = elements[target];
+                    elements[location[state]] = displaced;
+                    location[displaced] = location[state];
+                    elements[target] = state;
+                    location[state] = target;
+                }
+
+                // split every block that was only partly marked
+                for (int i = 0; i < touchedCount; i++) {
+                    final int splitBlock = touched[i];
+                    final int markedCount = marked[splitBlock];
+                    marked[splitBlock] = 0;
+                    if (markedCount == blockEnd[splitBlock] - blockFirst[splitBlock]) {
+                        continue;
+                    }
+                    final int newBlock = blockCount++;
+                    blockFirst[newBlock] = blockFirst[splitBlock];
+                    blockEnd[newBlock] = blockFirst[splitBlock] + markedCount;
+                    blockFirst[splitBlock] = blockEnd[newBlock];
+                    for (int j = blockFirst[newBlock]; j < blockEnd[newBlock]; j++) {
+                        blockOf[elements[j]] = newBlock;
+                    }
+                    final boolean newIsSmaller = markedCount <= blockEnd[splitBlock] - blockFirst[splitBlock];
+                    for (int d = 0; d < symbolCount; d++) {
+                        final int added;
+                        if (inWorklist[splitBlock * symbolCount + d]) {
+                            added = newBlock * symbolCount + d;
+                        } else {
+                            added = (newIsSmaller ? newBlock : splitBlock) * symbolCount + d;
+                        }
+                        if (!inWorklist[added]) {
+                            inWorklist[added] = true;
+                            worklist[worklistSize++] = added;
+                        }
+                    }
+                }
+            }
+
+            // pick a representative for each block: the entry state if it is in the block, or its first state
+            final int[] blockRepresentative = new int[blockCount];
+            Arrays.fill(blockRepresentative, -1);
+            blockRepresentative[blockOf[entry]] = entry;
+            for (int i = 0; i < stateCount; i++) {
+                if (blockRepresentative[blockOf[i]] < 0) {
+                    blockRepresentative[blockOf[i]] = i;
+                }
+            }
+            final int sinkBlock = blockOf[sink];
+            for (int i = 0; i < stateCount; i++) {
+                if (blockOf[i] == sinkBlock && blockOf[entry] != sinkBlock) {
+                    dead[i] = true;
+                } else {
+                    representative[i] = blockRepresentative[blockOf[i]];
+                }
+            }
+        }
+    }
+}
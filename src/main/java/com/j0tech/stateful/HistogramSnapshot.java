@@ -0,0 +1,109 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.Locale;
+
+/**
+ * A copy of a histogram of durations, in nanoseconds, taken by {@link StateMachineMetrics#snapshot()} or
+ * {@link ShardedRuntime#getShardMetrics(int)}. Values are counted in buckets of powers of two, so percentiles are
+ * reported as the upper bound of the bucket they fall in.
+ */
+public final class HistogramSnapshot {
+
+    private final long[] buckets;
+
+    private final long count, sum;
+
+    HistogramSnapshot(long[] buckets, long sum) {
+        this.buckets = buckets;
+        this.sum = sum;
+        long count = 0;
+        for (long bucket : buckets) {
+            count += bucket;
+        }
+        this.count = count;
+    }
+
+    /**
+     * Gets the number of values recorded.
+     * @return the count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the sum of the values recorded.
+     * @return the sum, in nanoseconds
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    /**
+     * Gets the mean of the values recorded.
+     * @return the mean, in nanoseconds, or 0 if no value was recorded
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Gets an upper bound of a percentile of the values recorded.
+     * @param percentile the percentile, from 0 to 100
+     * @return the upper bound, in nanoseconds, or 0 if no value was recorded
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentiles must be between 0 and 100");
+        }
+        final long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the number of values recorded in a bucket. Bucket 0 counts values of 0, and bucket {@code b} counts values
+     * from {@code 2^(b - 1)} to {@code 2^b - 1}.
+     * @param bucket the bucket, from 0 to 63
+     * @return the count
+     */
+    public long getBucketCount(int bucket) {
+        return buckets[bucket];
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "count=%d mean=%.1fns p50<=%dns p99<=%dns", count, getMean(),
+                getPercentile(50), getPercentile(99));
+    }
+}
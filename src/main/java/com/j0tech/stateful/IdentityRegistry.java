@@ -0,0 +1,149 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.Arrays;
+
+/**
+ * An identity-hashed registry that hands out dense integer IDs, in registration order, to the objects registered
+ * with it. Membership checks and ID lookups are O(1), so bulk registration runs in linear time. Nothing is allocated
+ * until the first object is registered.
+ * @param <T> the type of object being registered
+ */
+final class IdentityRegistry<T> {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final Object[] EMPTY = new Object[0];
+
+    private static final int[] NO_SLOTS = new int[0];
+
+    private Object[] keys;
+    private int[] slots;
+
+    private Object[] items;
+    private int size;
+
+    IdentityRegistry() {
+        keys = EMPTY;
+        slots = NO_SLOTS;
+        items = EMPTY;
+    }
+
+    private static int hash(Object key, int mask) {
+        final int h = System.identityHashCode(key);
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int indexOf(Object key) {
+        if (keys.length == 0) {
+            return -1;
+        }
+        final int mask = keys.length - 1;
+        int i = hash(key, mask);
+        while (keys[i] != null) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1 - i;
+    }
+
+    /**
+     * Registers an object.
+     * @param item the object to register
+     * @return the ID given to the object, or -1 if it was already registered
+     */
+    int register(T item) {
+        int index = indexOf(item);
+        if (index >= 0) {
+            return -1;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            rehash(Math.max(INITIAL_CAPACITY * 2, keys.length * 2));
+            index = indexOf(item);
+        }
+        if (size == items.length) {
+            items = Arrays.copyOf(items, Math.max(INITIAL_CAPACITY, size * 2));
+        }
+        index = -1 - index;
+        keys[index] = item;
+        slots[index] = size;
+        items[size] = item;
+        return size++;
+    }
+
+    /**
+     * Gets the ID of a registered object.
+     * @param item the object
+     * @return its ID, or -1 if it is not registered
+     */
+    int idOf(Object item) {
+        final int index = indexOf(item);
+        return index >= 0 ? slots[index] : -1;
+    }
+
+    boolean contains(Object item) {
+        return indexOf(item) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int id) {
+        return (T) items[id];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Unregisters every object whose ID is greater than or equal to newSize. Used to roll back a partially applied
+     * bulk registration.
+     * @param newSize the number of objects to keep
+     */
+    void truncate(int newSize) {
+        if (newSize >= size) {
+            return;
+        }
+        Arrays.fill(items, newSize, size, null);
+        size = newSize;
+        rehash(keys.length);
+    }
+
+    private void rehash(int capacity) {
+        keys = new Object[capacity];
+        slots = new int[capacity];
+        final int mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            int i = hash(items[id], mask);
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = items[id];
+            slots[i] = id;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values, in buckets of powers of two. Recording a value never allocates, except the
+ * first few times that threads contend on it.
+ *
+ * The counts start out in a single stripe. Whenever two threads collide on a stripe, the number of stripes is doubled,
+ * up to the number of processors, and each thread records into the stripe picked by its ID, so concurrent writers end
+ * up on different cache lines. The stripes are summed when a snapshot is taken.
+ */
+final class LatencyHistogram {
+
+    static final int BUCKET_COUNT = 64;
+
+    // buckets, then the sum of every value recorded, then padding so the sum does not share a cache line with whatever
+    // is allocated next
+    private static final int STRIPE_LENGTH = BUCKET_COUNT + 1 + 7;
+
+    private static final int MAX_STRIPES;
+
+    static {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        final int stripes = Integer.highestOneBit(processors);
+        MAX_STRIPES = stripes == processors ? stripes : stripes << 1;
+    }
+
+    private volatile AtomicLongArray[] stripes = {new AtomicLongArray(STRIPE_LENGTH)};
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        final AtomicLongArray[] current = stripes;
+        // thread IDs are handed out in sequence, so the low bits already spread threads evenly over the stripes
+        final AtomicLongArray stripe = current[(int) Thread.currentThread().getId() & (current.length - 1)];
+        final int bucket = bucketOf(value);
+        final long count = stripe.get(bucket);
+        if (!stripe.compareAndSet(bucket, count, count + 1)) {
+            stripe.getAndIncrement(bucket);
+            grow(current);
+        }
+        stripe.getAndAdd(BUCKET_COUNT, value);
+    }
+
+    private void grow(AtomicLongArray[] contended) {
+        if (contended.length >= MAX_STRIPES) {
+            return;
+        }
+        synchronized (this) {
+            // the existing stripes are kept, so no count recorded into them while growing is lost
+            if (stripes == contended) {
+                final AtomicLongArray[] grown = Arrays.copyOf(contended, contended.length << 1);
+                for (int i = contended.length; i < grown.length; i++) {
+                    grown[i] = new AtomicLongArray(STRIPE_LENGTH);
+                }
+                stripes = grown;
+            }
+        }
+    }
+
+    /**
+     * Gets the bucket of a value: 0 holds 0, and bucket {@code b} holds values from {@code 2^(b - 1)} to
+     * {@code 2^b - 1}.
+     */
+    static int bucketOf(long value) {
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    HistogramSnapshot snapshot() {
+        final long[] buckets = new long[BUCKET_COUNT];
+        long sum = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] += stripe.get(i);
+            }
+            sum += stripe.get(BUCKET_COUNT);
+        }
+        return new HistogramSnapshot(buckets, sum);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs a {@link StateMachine} as a recognizer, like an {@link NfaRunner}, but determinizes it lazily: each set of
+ * active states reached is turned into a DFA state the first time it is seen, and the transitions between DFA states
+ * are cached, so most symbols cost a single array lookup.
+ *
+ * The cache holds a bounded number of DFA states. When it is full, it is flushed and rebuilt from the current state.
+ * If it keeps filling up faster than it pays for itself, the runner falls back to stepping the NFA directly until
+ * {@link #reset()} is called.
+ *
+ * Note: runners are not synchronized.
+ */
+public final class LazyDfaRunner {
+
+    /**
+     * Symbols below this value have their DFA transitions cached in an array. Larger symbols are looked up through
+     * the set of active states they lead to.
+     */
+    private static final int CACHED_SYMBOLS = 256;
+
+    /**
+     * The cache must last at least this many steps per cached DFA state between flushes, or the runner falls back to
+     * the NFA.
+     */
+    private static final int MIN_STEPS_PER_STATE = 10;
+
+    private final Automaton automaton;
+
+    private final int maxCachedStates;
+
+    private final Map<ActiveStateSet, DfaState> cache = new HashMap<>();
+
+    private DfaState current;
+
+    // the states a step leads to are computed here, and only copied when they make a new DFA state
+    private final long[] scratch;
+
+    private final ActiveStateSet scratchKey;
+
+    private long[] nfaActive, nfaNext;
+
+    private boolean usingNfa;
+
+    private long stepsSinceFlush;
+
+    private long hits, misses, evictions, fallbacks;
+
+    /**
+     * Constructs a runner, starting in the epsilon closure of the state machine's entry state. The state machine is
+     * frozen if it has not been already.
+     * @param stateMachine the state machine to run
+     * @param maxCachedStates the maximum number of DFA states to keep cached
+     */
+    public LazyDfaRunner(StateMachine stateMachine, int maxCachedStates) {
+        if (maxCachedStates < 2) {
+            throw new IllegalArgumentException("The cache must hold at least 2 states");
+        }
+        automaton = stateMachine.getAutomaton();
+        this.maxCachedStates = maxCachedStates;
+        scratch = new long[automaton.start.length];
+        scratchKey = new ActiveStateSet(scratch);
+        current = startState();
+    }
+
+    private DfaState startState() {
+        final DfaState existing = cache.get(new ActiveStateSet(automaton.start));
+        if (existing != null) {
+            return existing;
+        }
+        // the start state is looked up again after every flush, so a flushed copy is never kept alive
+        final DfaState state = new DfaState(automaton.start.clone());
+        cache.put(state.key, state);
+        return state;
+    }
+
+    /**
+     * Goes back to the epsilon closure of the entry state, and retries the DFA if the runner had fallen back to the
+     * NFA.
+     */
+    public void reset() {
+        usingNfa = false;
+        stepsSinceFlush = 0;
+        current = startState();
+    }
+
+    /**
+     * Feeds one symbol.
+     * @param symbol the symbol
+     */
+    public void step(int symbol) {
+        if (usingNfa) {
+            automaton.step(nfaActive, symbol, nfaNext);
+            final long[] swap = nfaActive;
+            nfaActive = nfaNext;
+            nfaNext = swap;
+            return;
+        }
+
+        stepsSinceFlush++;
+        if (symbol >= 0 && symbol < CACHED_SYMBOLS) {
+            final DfaState next = current.next[symbol];
+            if (next != null) {
+                hits++;
+                current = next;
+                return;
+            }
+        }
+
+        automaton.step(current.key.words, symbol, scratch);
+        DfaState next = cache.get(scratchKey);
+        if (next != null) {
+            // the DFA state is cached, only the transition to it was not
+            hits++;
+        } else {
+            misses++;
+            final long[] target = scratch.clone();
+            if (cache.size() >= maxCachedStates && !flush(target)) {
+                return;
+            }
+            next = new DfaState(target);
+            cache.put(next.key, next);
+        }
+        if (symbol >= 0 && symbol < CACHED_SYMBOLS) {
+            current.next[symbol] = next;
+        }
+        current = next;
+    }
+
+    /**
+     * Empties the cache, or falls back to the NFA if the cache is thrashing.
+     * @param target the states the current step leads to
+     * @return true if the cache was flushed, false if the runner fell back to the NFA
+     */
+    private boolean flush(long[] target) {
+        evictions += cache.size();
+        cache.clear();
+        if (stepsSinceFlush < (long) maxCachedStates * MIN_STEPS_PER_STATE) {
+            fallbacks++;
+            usingNfa = true;
+            nfaActive = target;
+            nfaNext = new long[target.length];
+            current = null;
+            return false;
+        }
+        stepsSinceFlush = 0;
+        return true;
+    }
+
+    /**
+     * Feeds a sequence of symbols.
+     * @param symbols the symbols
+     */
+    public void steps(int... symbols) {
+        for (int symbol : symbols) {
+            step(symbol);
+        }
+    }
+
+    /**
+     * Checks if any active state is accepting.
+     * @return true if the input fed so far is accepted, false otherwise
+     */
+    public boolean isAccepting() {
+        return usingNfa ? ActiveStateSet.intersects(nfaActive, automaton.accepting) : current.accepting;
+    }
+
+    /**
+     * Checks if no state is active, in which case no further input can be accepted.
+     * @return true if no state is active, false otherwise
+     */
+    public boolean isDead() {
+        return usingNfa ? ActiveStateSet.isEmpty(nfaActive) : current.dead;
+    }
+
+    /**
+     * Checks if the runner has fallen back to stepping the NFA, because the DFA cache was thrashing.
+     * @return true if stepping the NFA, false if using the DFA cache
+     */
+    public boolean isUsingNfaFallback() {
+        return usingNfa;
+    }
+
+    /**
+     * Gets the number of DFA states currently cached.
+     * @return the number of cached states
+     */
+    public int getCachedStateCount() {
+        return cache.size();
+    }
+
+    /**
+     * Gets the number of symbols that led to a DFA state that was already cached, whether the transition to it was
+     * cached as well, or had to be computed from the NFA.
+     * @return the number of cache hits
+     */
+    public long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of symbols that led to a DFA state that was not cached, and had to be built.
+     * @return the number of cache misses
+     */
+    public long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of DFA states that were evicted from the cache.
+     * @return the number of evictions
+     */
+    public long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Gets the number of times the runner fell back to the NFA.
+     * @return the number of fallbacks
+     */
+    public long getFallbackCount() {
+        return fallbacks;
+    }
+
+    private final class DfaState {
+
+        final ActiveStateSet key;
+
+        final boolean accepting, dead;
+
+        final DfaState[] next = new DfaState[CACHED_SYMBOLS];
+
+        DfaState(long[] states) {
+            key = new ActiveStateSet(states);
+            accepting = ActiveStateSet.intersects(states, automaton.accepting);
+            dead = ActiveStateSet.isEmpty(states);
+        }
+    }
+}
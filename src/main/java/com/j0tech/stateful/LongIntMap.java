@@ -0,0 +1,142 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+/**
+ * An open-addressing hash map from long keys to non-negative int values, with no boxing. Not synchronized.
+ */
+final class LongIntMap {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] keys;
+
+    // value + 1, so that 0 marks an empty slot
+    private int[] values;
+
+    private int size;
+
+    LongIntMap() {
+        keys = new long[INITIAL_CAPACITY];
+        values = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Spreads the bits of a key, with the finalizer of MurmurHash3.
+     */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int indexOf(long key) {
+        final int mask = keys.length - 1;
+        int i = (int) mix(key) & mask;
+        while (values[i] != 0) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1 - i;
+    }
+
+    /**
+     * Gets the value of a key.
+     * @return the value, or -1 if the key is not in the map
+     */
+    int get(long key) {
+        final int index = indexOf(key);
+        return index < 0 ? -1 : values[index] - 1;
+    }
+
+    /**
+     * Maps a key to a value, replacing its previous value if any.
+     */
+    void put(long key, int value) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            values[index] = value + 1;
+            return;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+            index = indexOf(key);
+        }
+        index = -1 - index;
+        keys[index] = key;
+        values[index] = value + 1;
+        size++;
+    }
+
+    /**
+     * Removes a key.
+     * @return the key's value, or -1 if the key was not in the map
+     */
+    int remove(long key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return -1;
+        }
+        final int value = values[index] - 1;
+        // shift the following entries of the probe sequence back, so no tombstone is needed
+        final int mask = keys.length - 1;
+        int next = (index + 1) & mask;
+        while (values[next] != 0) {
+            final int home = (int) mix(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - index) & mask)) {
+                keys[index] = keys[next];
+                values[index] = values[next];
+                index = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[index] = 0;
+        size--;
+        return value;
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = keys;
+        final int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) {
+                final int index = -1 - indexOf(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+/**
+ * Receives the measurements of a {@link StateMachine} or a {@link StateMachinePool}. Disabled metrics are the
+ * {@link #NONE} probe, whose methods do nothing, so that the instrumented code has no branches to skip them.
+ *
+ * @see StateMachineMetrics
+ */
+abstract class MetricsProbe {
+
+    static final MetricsProbe NONE = new MetricsProbe() {
+        @Override
+        long updateStarted() {
+            return 0;
+        }
+
+        @Override
+        void updateFinished(long start) {
+
+        }
+
+        @Override
+        void guardEvaluated(int transitionId) {
+
+        }
+
+        @Override
+        void stateChanged(int instance, int fromState, int toState, int transitionId) {
+
+        }
+
+        @Override
+        void ensureCapacity(int capacity) {
+
+        }
+    };
+
+    /**
+     * Called when an update starts.
+     * @return a value to pass to {@link #updateFinished(long)}
+     */
+    abstract long updateStarted();
+
+    abstract void updateFinished(long start);
+
+    abstract void guardEvaluated(int transitionId);
+
+    /**
+     * Called after an instance changed state, with the transition ID -1 if it did not take a transition.
+     */
+    abstract void stateChanged(int instance, int fromState, int toState, int transitionId);
+
+    /**
+     * Called when the number of instances grows.
+     */
+    abstract void ensureCapacity(int capacity);
+}
@@ -0,0 +1,115 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import com.j0tech.stateful.exceptions.StateNotManagedException;
+
+/**
+ * A copy of the values of a {@link StateMachineMetrics}, taken by {@link StateMachineMetrics#snapshot()}.
+ */
+public final class MetricsSnapshot {
+
+    private final StateMachine definition;
+
+    private final CompiledGraph graph;
+
+    private final long[] entryCounts, fireCounts, guardEvaluationCounts;
+
+    private final HistogramSnapshot[] dwellTimes;
+
+    private final HistogramSnapshot updateLatency;
+
+    MetricsSnapshot(StateMachine definition, long[] entryCounts, HistogramSnapshot[] dwellTimes, long[] fireCounts,
+                    long[] guardEvaluationCounts, HistogramSnapshot updateLatency) {
+        this.definition = definition;
+        graph = definition.getGraph();
+        this.entryCounts = entryCounts;
+        this.dwellTimes = dwellTimes;
+        this.fireCounts = fireCounts;
+        this.guardEvaluationCounts = guardEvaluationCounts;
+        this.updateLatency = updateLatency;
+    }
+
+    private int idOf(State state) {
+        final int id = definition.getStateId(state);
+        if (id < 0) {
+            throw new StateNotManagedException(state);
+        }
+        return id;
+    }
+
+    private int idOf(Transition transition) {
+        final int id = graph.transitions.idOf(transition);
+        if (id < 0) {
+            throw new IllegalArgumentException("Transition does not belong to this state machine");
+        }
+        return id;
+    }
+
+    /**
+     * Gets how many times a state was entered.
+     * @param state the state
+     * @return the count
+     */
+    public long getEntryCount(State state) {
+        return entryCounts[idOf(state)];
+    }
+
+    /**
+     * Gets how long a state was stayed in, each time it was left.
+     * @param state the state
+     * @return the histogram of dwell times, in nanoseconds
+     */
+    public HistogramSnapshot getDwellTime(State state) {
+        return dwellTimes[idOf(state)];
+    }
+
+    /**
+     * Gets how many times a transition was taken.
+     * @param transition the transition
+     * @return the count
+     */
+    public long getFireCount(Transition transition) {
+        return fireCounts[idOf(transition)];
+    }
+
+    /**
+     * Gets how many times a polled transition's guard was checked.
+     * @param transition the transition
+     * @return the count
+     */
+    public long getGuardEvaluationCount(Transition transition) {
+        return guardEvaluationCounts[idOf(transition)];
+    }
+
+    /**
+     * Gets how long updates took, including their callbacks. For a {@link StateMachinePool}, each instance's update is
+     * measured separately.
+     * @return the histogram of update latencies, in nanoseconds
+     */
+    public HistogramSnapshot getUpdateLatency() {
+        return updateLatency;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue with any number of producers and a single consumer.
+ *
+ * Producers claim a slot by advancing the tail with compare-and-set, then publish their element into it. The consumer
+ * is the only thread that advances the head, so polling needs no atomic read-modify-write at all.
+ */
+final class MpscMailbox {
+
+    private final AtomicReferenceArray<Object> buffer;
+
+    private final int mask, capacity;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong head = new AtomicLong();
+
+    MpscMailbox(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Mailbox capacity must be at least 1");
+        }
+        final int slots = Integer.highestOneBit(capacity - 1) << 1;
+        buffer = new AtomicReferenceArray<>(Math.max(slots, 1));
+        mask = buffer.length() - 1;
+        this.capacity = capacity;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of elements ever offered, including those whose producer has not published them yet.
+     */
+    long offered() {
+        return tail.get();
+    }
+
+    /**
+     * Gets the number of elements ever polled.
+     */
+    long polled() {
+        return head.get();
+    }
+
+    int size() {
+        // read the head first, so a concurrent poll can only make the result too large, never negative
+        final long currentHead = head.get();
+        return (int) Math.max(0, tail.get() - currentHead);
+    }
+
+    /**
+     * Adds an element, unless the mailbox is full.
+     * @return true if the element was added, false if the mailbox is full
+     */
+    boolean offer(Object element) {
+        long currentTail;
+        do {
+            currentTail = tail.get();
+            if (currentTail - head.get() >= capacity) {
+                return false;
+            }
+        } while (!tail.compareAndSet(currentTail, currentTail + 1));
+        buffer.lazySet((int) currentTail & mask, element);
+        return true;
+    }
+
+    /**
+     * Removes the oldest element. Must only be called by the consumer.
+     * @return the element, or null if the mailbox is empty
+     */
+    Object poll() {
+        final long currentHead = head.get();
+        if (currentHead == tail.get()) {
+            return null;
+        }
+        final int index = (int) currentHead & mask;
+        Object element;
+        // a producer has claimed this slot, but may not have published its element yet
+        while ((element = buffer.get(index)) == null) {
+            Thread.onSpinWait();
+        }
+        buffer.lazySet(index, null);
+        head.lazySet(currentHead + 1);
+        return element;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+/**
+ * Runs a {@link StateMachine} as a non-deterministic recognizer: every state that could be reached by the symbols fed
+ * so far is active at once, held as an {@link ActiveStateSet}.
+ *
+ * Only {@link SymbolTransition}s are followed, and no callbacks are called. {@link SymbolTransition#EPSILON}
+ * transitions are followed without consuming input. The input is accepted when any active state is accepting; see
+ * {@link State#isAccepting()}.
+ *
+ * Note: runners are not synchronized.
+ */
+public final class NfaRunner {
+
+    private final Automaton automaton;
+
+    private long[] active, next;
+
+    /**
+     * Constructs a runner, starting in the epsilon closure of the state machine's entry state. The state machine is
+     * frozen if it has not been already.
+     * @param stateMachine the state machine to run
+     */
+    public NfaRunner(StateMachine stateMachine) {
+        automaton = stateMachine.getAutomaton();
+        active = automaton.start.clone();
+        next = new long[active.length];
+    }
+
+    /**
+     * Goes back to the epsilon closure of the entry state.
+     */
+    public void reset() {
+        System.arraycopy(automaton.start, 0, active, 0, active.length);
+    }
+
+    /**
+     * Feeds one symbol.
+     * @param symbol the symbol
+     */
+    public void step(int symbol) {
+        automaton.step(active, symbol, next);
+        final long[] swap = active;
+        active = next;
+        next = swap;
+    }
+
+    /**
+     * Feeds a sequence of symbols.
+     * @param symbols the symbols
+     */
+    public void steps(int... symbols) {
+        for (int symbol : symbols) {
+            step(symbol);
+        }
+    }
+
+    /**
+     * Checks if any active state is accepting.
+     * @return true if the input fed so far is accepted, false otherwise
+     */
+    public boolean isAccepting() {
+        return ActiveStateSet.intersects(active, automaton.accepting);
+    }
+
+    /**
+     * Checks if no state is active, in which case no further input can be accepted.
+     * @return true if no state is active, false otherwise
+     */
+    public boolean isDead() {
+        return ActiveStateSet.isEmpty(active);
+    }
+
+    /**
+     * Gets a copy of the set of active states.
+     * @return the active states
+     */
+    public ActiveStateSet getActiveStates() {
+        return new ActiveStateSet(active.clone());
+    }
+}
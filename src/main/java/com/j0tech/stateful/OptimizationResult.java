@@ -0,0 +1,90 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.Locale;
+
+/**
+ * The outcome of a call to {@link GraphOptimizer#optimize(StateMachine)}.
+ */
+public final class OptimizationResult {
+
+    private final int unreachableStateCount, deadStateCount, mergedStateCount, removedTransitionCount;
+
+    OptimizationResult(int unreachableStateCount, int deadStateCount, int mergedStateCount,
+                       int removedTransitionCount) {
+        this.unreachableStateCount = unreachableStateCount;
+        this.deadStateCount = deadStateCount;
+        this.mergedStateCount = mergedStateCount;
+        this.removedTransitionCount = removedTransitionCount;
+    }
+
+    /**
+     * Gets the number of states removed because they could not be reached from the entry state.
+     * @return the number of unreachable states
+     */
+    public int getUnreachableStateCount() {
+        return unreachableStateCount;
+    }
+
+    /**
+     * Gets the number of states removed because no accepting state could be reached from them.
+     * @return the number of dead states
+     */
+    public int getDeadStateCount() {
+        return deadStateCount;
+    }
+
+    /**
+     * Gets the number of states removed because they were merged into an equivalent state.
+     * @return the number of merged states
+     */
+    public int getMergedStateCount() {
+        return mergedStateCount;
+    }
+
+    /**
+     * Gets the total number of states removed.
+     * @return the number of removed states
+     */
+    public int getRemovedStateCount() {
+        return unreachableStateCount + deadStateCount + mergedStateCount;
+    }
+
+    /**
+     * Gets the number of transitions removed.
+     * @return the number of removed transitions
+     */
+    public int getRemovedTransitionCount() {
+        return removedTransitionCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "removed %d states (%d unreachable, %d dead, %d merged) and %d " +
+                "transitions", getRemovedStateCount(), unreachableStateCount, deadStateCount, mergedStateCount,
+                removedTransitionCount);
+    }
+}
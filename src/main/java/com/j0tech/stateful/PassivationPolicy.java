@@ -0,0 +1,104 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Configures how a {@link ShardedRuntime} passivates idle instances: each shard keeps at most a number of instances in
+ * memory, and writes the least recently used ones, as well as those idle for too long, to a file of fixed-size
+ * records in a directory. A passivated instance is reactivated when a request arrives for it.
+ *
+ * An instance is used when it is added or an event is fired at it. Ticks do not count as uses, and do not update
+ * passivated instances, so passivation suits definitions whose idle instances wait for events.
+ */
+public final class PassivationPolicy {
+
+    private final Path directory;
+
+    private final ContextCodec codec;
+
+    private final int maxHotInstances;
+
+    private final Duration maxIdleTime;
+
+    /**
+     * Constructs a passivation policy.
+     * @param directory the directory the shards' stores are created in. The stores only hold passivated instances
+     *                  while the runtime runs, and are deleted when it is closed.
+     * @param codec writes and reads the instances' context objects
+     * @param maxHotInstances the maximum number of instances each shard keeps in memory
+     * @param maxIdleTime how long an instance may go unused before it is passivated, or null to only passivate
+     *                    instances when a shard holds too many
+     */
+    public PassivationPolicy(Path directory, ContextCodec codec, int maxHotInstances, Duration maxIdleTime) {
+        if (directory == null || codec == null) {
+            throw new NullPointerException("Directory and codec cannot be null");
+        }
+        if (maxHotInstances < 1) {
+            throw new IllegalArgumentException("Maximum number of hot instances must be at least 1");
+        }
+        if (maxIdleTime != null && (maxIdleTime.isNegative() || maxIdleTime.isZero())) {
+            throw new IllegalArgumentException("Maximum idle time must be positive");
+        }
+        this.directory = directory;
+        this.codec = codec;
+        this.maxHotInstances = maxHotInstances;
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * Gets the directory the shards' stores are created in.
+     * @return the directory
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Gets the codec of the instances' context objects.
+     * @return the codec
+     */
+    public ContextCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Gets the maximum number of instances each shard keeps in memory.
+     * @return the maximum number of hot instances
+     */
+    public int getMaxHotInstances() {
+        return maxHotInstances;
+    }
+
+    /**
+     * Gets how long an instance may go unused before it is passivated.
+     * @return the maximum idle time, or null if instances are only passivated when a shard holds too many
+     */
+    public Duration getMaxIdleTime() {
+        return maxIdleTime;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The passivated instances of one shard of a {@link ShardedRuntime}, in a file of fixed-size records: the instance's
+ * state ID, followed by its context as written by a {@link ContextCodec}. Only the record index of each key is kept in
+ * memory, and the records of reactivated instances are reused. Not synchronized: a store is only used by its shard.
+ */
+final class PassivationStore implements Closeable {
+
+    private final Path file;
+
+    private final FileChannel channel;
+
+    private final ContextCodec codec;
+
+    private final int recordSize;
+
+    private final ByteBuffer buffer;
+
+    private final LongIntMap records = new LongIntMap();
+
+    private int[] freeRecords = new int[16];
+
+    private int freeCount, recordCount;
+
+    PassivationStore(Path file, ContextCodec codec) throws IOException {
+        this.file = file;
+        this.codec = codec;
+        recordSize = 4 + codec.getSize();
+        buffer = ByteBuffer.allocateDirect(recordSize);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    int size() {
+        return records.size();
+    }
+
+    boolean contains(long key) {
+        return records.get(key) >= 0;
+    }
+
+    /**
+     * Writes an instance, which must not be in the store already. If the codec or the write fails, the record is given
+     * back, and the instance is not in the store.
+     */
+    void write(long key, int stateId, Object context) throws IOException {
+        final int record = freeCount > 0 ? freeRecords[--freeCount] : recordCount++;
+        try {
+            buffer.clear();
+            buffer.putInt(stateId);
+            codec.write(context, buffer);
+            buffer.clear();
+            final long position = (long) record * recordSize;
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        } catch (Throwable t) {
+            release(record);
+            throw t;
+        }
+        records.put(key, record);
+    }
+
+    /**
+     * Reads the record of an instance into the buffer.
+     * @return the instance's state ID, or -1 if the instance is not in the store
+     */
+    int readState(long key) throws IOException {
+        final int record = records.get(key);
+        if (record < 0) {
+            return -1;
+        }
+        buffer.clear();
+        final long position = (long) record * recordSize;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Passivation store " + file + " is truncated");
+            }
+        }
+        buffer.flip();
+        return buffer.getInt();
+    }
+
+    /**
+     * Decodes the context of the record last read by {@link #readState(long)}.
+     */
+    Object readContext() {
+        return codec.read(buffer);
+    }
+
+    /**
+     * Removes an instance, so its record can be reused.
+     */
+    void remove(long key) {
+        final int record = records.remove(key);
+        if (record >= 0) {
+            release(record);
+        }
+    }
+
+    private void release(int record) {
+        if (freeCount == freeRecords.length) {
+            freeRecords = Arrays.copyOf(freeRecords, freeCount * 2);
+        }
+        freeRecords[freeCount++] = record;
+    }
+
+    /**
+     * Closes and deletes the store.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import com.j0tech.stateful.exceptions.DefinitionMismatchException;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Saves the current states of every instance in a {@link StateMachinePool} to a file, and restores them, through
+ * memory-mapped buffers.
+ *
+ * A snapshot starts with a 32 byte header holding the definition's fingerprint, see
+ * {@link StateMachine#getDefinitionFingerprint()}, followed by one record per instance: the ID of its current state,
+ * in 1, 2 or 4 bytes depending on how many states the definition has, followed by the instance's
+ * {@link SnapshotPayload}, if any. Restoring a snapshot into a pool whose definition has a different fingerprint fails
+ * with a {@link DefinitionMismatchException}.
+ *
+ * No callbacks are called when saving or restoring.
+ */
+public final class PoolSnapshot {
+
+    private static final int MAGIC = 0x53544d53;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+
+    /**
+     * The largest part of a file that is mapped at once.
+     */
+    private static final int WINDOW_SIZE = 1 << 26;
+
+    private PoolSnapshot() {
+
+    }
+
+    /**
+     * Saves the current state of every instance in a pool, without any payload.
+     * @param pool the pool
+     * @param file the file to write, which is replaced if it exists
+     * @throws IOException if writing the file fails
+     */
+    public static void write(StateMachinePool pool, Path file) throws IOException {
+        write(pool, file, null);
+    }
+
+    /**
+     * Saves the current state of every instance in a pool, each followed by its payload, and forces the file to
+     * storage.
+     *
+     * The snapshot is written to a temporary file next to the target, which is then moved over the target atomically,
+     * so a crash while saving leaves either the previous snapshot or the new one, never a partial one.
+     * @param pool the pool
+     * @param file the file to write, which is replaced if it exists
+     * @param payload writes each instance's payload, or null for none
+     * @throws IOException if writing the file fails
+     */
+    public static void write(StateMachinePool pool, Path file, SnapshotPayload payload) throws IOException {
+        final Path target = file.toAbsolutePath();
+        final Path temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        boolean moved = false;
+        try {
+            writeTo(pool, temporary, payload);
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            moved = true;
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    private static void writeTo(StateMachinePool pool, Path file, SnapshotPayload payload) throws IOException {
+        final int[] states = pool.states;
+        final int count = states.length;
+        final int idWidth = idWidth(pool.getDefinition().getStateCount());
+        final int payloadSize = payload == null ? 0 : payload.getSize();
+        final int recordSize = idWidth + payloadSize;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final int windowRecords = Math.max(1, WINDOW_SIZE / recordSize);
+            for (int from = 0; from < count; from += windowRecords) {
+                final int to = (int) Math.min(count, (long) from + windowRecords);
+                final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + (long) from * recordSize, (long) (to - from) * recordSize);
+                for (int i = from; i < to; i++) {
+                    switch (idWidth) {
+                        case 1:
+                            window.put((byte) states[i]);
+                            break;
+                        case 2:
+                            window.putShort((short) states[i]);
+                            break;
+                        default:
+                            window.putInt(states[i]);
+                    }
+                    if (payloadSize != 0) {
+                        final int end = window.position() + payloadSize;
+                        payload.write(i, window);
+                        if (window.position() != end) {
+                            throw new IllegalStateException(String.format(Locale.getDefault(), "Payload of " +
+                                    "instance %d was not %d bytes long", i, payloadSize));
+                        }
+                    }
+                }
+                window.force();
+            }
+
+            // the header goes last, so the file is only recognised as a snapshot once every record is on storage
+            final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putLong(pool.getDefinition().getDefinitionFingerprint())
+                    .putInt(count)
+                    .putInt(idWidth)
+                    .putInt(payloadSize);
+            header.force();
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Restores the current state of the instances saved in a snapshot without payload. The pool is grown to hold
+     * every saved instance if needed, and instances past the saved ones are left as they are.
+     * @param file the snapshot
+     * @param pool the pool, whose definition must have the same fingerprint as the saved one
+     * @return the number of instances restored
+     * @throws IOException if reading the file fails, or it is not a valid snapshot
+     * @throws DefinitionMismatchException if the snapshot was saved from a pool with a different definition
+     */
+    public static int read(Path file, StateMachinePool pool) throws IOException {
+        return read(file, pool, null);
+    }
+
+    /**
+     * Restores the current state of the instances saved in a snapshot, along with their payload. The pool is grown to
+     * hold every saved instance if needed, and instances past the saved ones are left as they are.
+     * @param file the snapshot
+     * @param pool the pool, whose definition must have the same fingerprint as the saved one
+     * @param payload reads each instance's payload, or null to skip it
+     * @return the number of instances restored
+     * @throws IOException if reading the file fails, or it is not a valid snapshot
+     * @throws DefinitionMismatchException if the snapshot was saved from a pool with a different definition
+     */
+    public static int read(Path file, StateMachinePool pool, SnapshotPayload payload) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("File is too short to be a snapshot");
+            }
+            final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("File is not a snapshot");
+            }
+            final int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(String.format(Locale.getDefault(), "Unsupported snapshot version %d",
+                        version));
+            }
+            final long fingerprint = header.getLong();
+            final long expected = pool.getDefinition().getDefinitionFingerprint();
+            if (fingerprint != expected) {
+                throw new DefinitionMismatchException(expected, fingerprint);
+            }
+            final int count = header.getInt();
+            final int idWidth = header.getInt();
+            final int payloadSize = header.getInt();
+            final int stateCount = pool.getDefinition().getStateCount();
+            if (count < 0 || idWidth != idWidth(stateCount) || payloadSize < 0) {
+                throw new IOException("Snapshot header is corrupt");
+            }
+            if (payload != null && payload.getSize() != payloadSize) {
+                throw new IllegalArgumentException(String.format(Locale.getDefault(), "Snapshot has %d bytes of " +
+                        "payload per instance, not %d", payloadSize, payload.getSize()));
+            }
+            final int recordSize = idWidth + payloadSize;
+            if (channel.size() < HEADER_SIZE + (long) count * recordSize) {
+                throw new IOException("Snapshot is truncated");
+            }
+
+            pool.ensureCapacity(count);
+            final int[] states = pool.states;
+            final int windowRecords = Math.max(1, WINDOW_SIZE / recordSize);
+            for (int from = 0; from < count; from += windowRecords) {
+                final int to = (int) Math.min(count, (long) from + windowRecords);
+                final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE + (long) from * recordSize, (long) (to - from) * recordSize);
+                for (int i = from; i < to; i++) {
+                    final int stateId;
+                    switch (idWidth) {
+                        case 1:
+                            stateId = window.get() & 0xff;
+                            break;
+                        case 2:
+                            stateId = window.getShort() & 0xffff;
+                            break;
+                        default:
+                            stateId = window.getInt();
+                    }
+                    if (stateId < 0 || stateId >= stateCount) {
+                        throw new IOException(String.format(Locale.getDefault(), "Instance %d has invalid state " +
+                                "ID %d", i, stateId));
+                    }
+                    states[i] = stateId;
+                    if (payloadSize != 0) {
+                        final int end = window.position() + payloadSize;
+                        if (payload != null) {
+                            window.limit(end);
+                            payload.read(i, window);
+                            window.limit(window.capacity());
+                        }
+                        window.position(end);
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    private static int idWidth(int stateCount) {
+        if (stateCount <= 1 << 8) {
+            return 1;
+        }
+        return stateCount <= 1 << 16 ? 2 : 4;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import com.j0tech.stateful.exceptions.StateAlreadyManagedException;
+import com.j0tech.stateful.exceptions.StateMachineFrozenException;
+import com.j0tech.stateful.exceptions.StateNotManagedException;
+
+import java.util.Locale;
+
+/**
+ * A group of child states of a composite {@link State}, exactly one of which is active while the composite state is.
+ * When the composite state is entered, the region's initial state is entered too, unless a transition targets
+ * another of its states directly.
+ *
+ * The states of a region must also be added to the {@link StateMachine} itself.
+ *
+ * @see State#addRegion(Region)
+ * @see Statechart
+ */
+public final class Region {
+
+    private final String name;
+
+    final IdentityRegistry<State> states = new IdentityRegistry<>();
+
+    State owner, initialState;
+
+    /**
+     * Constructs a region with the given name.
+     * @param name the name
+     */
+    public Region(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Adds a child state to this region.
+     * @param state the state to add
+     * @throws StateAlreadyManagedException if the state is already in a region
+     * @throws StateMachineFrozenException if the state or this region's owner belongs to a frozen state machine
+     */
+    public void addState(State state) {
+        if (state.frozen || (owner != null && owner.frozen)) {
+            throw new StateMachineFrozenException(state);
+        }
+        if (state.parentRegion != null) {
+            throw new StateAlreadyManagedException(state, String.format(Locale.getDefault(), "State is already in " +
+                    "region %s", state.parentRegion.toString()));
+        }
+        state.parentRegion = this;
+        states.register(state);
+    }
+
+    /**
+     * Adds child states to this region.
+     * @param states the states to add
+     */
+    public void addStates(State... states) {
+        for (State state : states) {
+            addState(state);
+        }
+    }
+
+    /**
+     * Sets the state that is entered when this region is entered without a transition targeting one of its states.
+     * @param state the initial state
+     * @throws StateNotManagedException if the state is not in this region
+     */
+    public void setInitialState(State state) {
+        if (state.parentRegion != this) {
+            throw new StateNotManagedException(state, "Initial state is not in this region");
+        }
+        initialState = state;
+    }
+
+    /**
+     * Gets the state that is entered when this region is entered without a transition targeting one of its states.
+     * @return the initial state, or null if it has not been set
+     */
+    public State getInitialState() {
+        return initialState;
+    }
+
+    /**
+     * Gets the composite state this region belongs to.
+     * @return the owner, or null if this region has not been added to a state yet
+     */
+    public State getOwner() {
+        return owner;
+    }
+
+    /**
+     * Gets the name of this region.
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
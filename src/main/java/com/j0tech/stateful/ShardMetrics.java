@@ -0,0 +1,105 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.Locale;
+
+/**
+ * A copy of the measurements of one shard of a {@link ShardedRuntime}, taken by
+ * {@link ShardedRuntime#getShardMetrics(int)}.
+ */
+public final class ShardMetrics {
+
+    private final int shard;
+
+    private final int queueDepth, instanceCount, passivatedCount;
+
+    private final HistogramSnapshot eventLatency, tickDuration;
+
+    ShardMetrics(int shard, int queueDepth, int instanceCount, int passivatedCount, HistogramSnapshot eventLatency,
+                 HistogramSnapshot tickDuration) {
+        this.shard = shard;
+        this.queueDepth = queueDepth;
+        this.instanceCount = instanceCount;
+        this.passivatedCount = passivatedCount;
+        this.eventLatency = eventLatency;
+        this.tickDuration = tickDuration;
+    }
+
+    /**
+     * Gets the index of the shard.
+     * @return the shard index
+     */
+    public int getShard() {
+        return shard;
+    }
+
+    /**
+     * Gets the number of requests that were waiting in the shard's queue.
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Gets the number of instances the shard held in memory.
+     * @return the number of instances
+     */
+    public int getInstanceCount() {
+        return instanceCount;
+    }
+
+    /**
+     * Gets the number of instances the shard had passivated to disk; see {@link PassivationPolicy}.
+     * @return the number of passivated instances
+     */
+    public int getPassivatedCount() {
+        return passivatedCount;
+    }
+
+    /**
+     * Gets the time events spent between being fired and having been handled, including their wait in the queue.
+     * @return the event latencies
+     */
+    public HistogramSnapshot getEventLatency() {
+        return eventLatency;
+    }
+
+    /**
+     * Gets the time each tick took to update every instance of the shard.
+     * @return the tick durations
+     */
+    public HistogramSnapshot getTickDuration() {
+        return tickDuration;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "shard %d: %d instances, %d passivated, %d queued, event latency " +
+                "[%s], tick duration [%s]", shard, instanceCount, passivatedCount, queueDepth, eventLatency,
+                tickDuration);
+    }
+}
@@ -0,0 +1,672 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import com.j0tech.stateful.exceptions.NoEntryStateSetException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+
+/**
+ * Runs a large population of instances of one {@link StateMachine} definition, addressed by long keys, on a fixed
+ * number of single-threaded shards. Each key is hashed onto a shard, which owns its instances outright: they live in
+ * the shard's own {@link StateMachinePool}, and are only ever touched by the shard's thread, so no locks are taken.
+ *
+ * Requests are routed to the owning shard's bounded mailbox, and handled in the order they were made. Producers never
+ * block: when a shard's mailbox is full, the request is rejected, so overload shows up as queue depth. A
+ * {@link #tick()} asks every shard to update each of its instances once, like {@link StateMachinePool#update(int,
+ * Object)}, after the requests queued before it and before those queued after it. Ticks requested faster than a shard
+ * runs them are coalesced into one, which runs after the requests queued before the last of them. Each shard reports
+ * its queue depth, event latency and tick duration through {@link #getShardMetrics(int)}.
+ *
+ * With a {@link PassivationPolicy}, each shard keeps only its most recently used instances in memory, and writes the
+ * others to a store on disk, from which they are reactivated when a request arrives for them.
+ *
+ * Callbacks run on the shard threads, with the context object the instance was added with. An exception thrown by a
+ * callback is passed to the shard thread's uncaught exception handler, and the shard keeps running.
+ */
+public final class ShardedRuntime implements AutoCloseable {
+
+    /**
+     * The shortest time an idle shard parks for while waiting to passivate an instance, so that failing to write the
+     * instance does not make the shard spin.
+     */
+    private static final long RETRY_NANOS = 1_000_000;
+
+    private static final int ADD = 0, REMOVE = 1, EVENT = 2, QUERY = 3;
+
+    private final StateMachine definition;
+
+    private final Shard[] shards;
+
+    private volatile boolean closed;
+
+    /**
+     * Constructs a runtime, with one daemon thread per shard. The definition is frozen if it has not been already.
+     * @param definition the state machine shared by every instance
+     * @param shardCount the number of shards, usually the number of cores
+     * @param mailboxCapacity the maximum number of requests queued per shard
+     * @throws NoEntryStateSetException if the definition has no entry state
+     */
+    public ShardedRuntime(StateMachine definition, int shardCount, int mailboxCapacity) {
+        this(definition, shardCount, mailboxCapacity, daemonThreads());
+    }
+
+    /**
+     * Constructs a runtime. The definition is frozen if it has not been already.
+     * @param definition the state machine shared by every instance
+     * @param shardCount the number of shards, usually the number of cores
+     * @param mailboxCapacity the maximum number of requests queued per shard
+     * @param threadFactory creates the thread of each shard
+     * @throws NoEntryStateSetException if the definition has no entry state
+     */
+    public ShardedRuntime(StateMachine definition, int shardCount, int mailboxCapacity, ThreadFactory threadFactory) {
+        this(definition, shardCount, mailboxCapacity, threadFactory, null, null);
+    }
+
+    /**
+     * Constructs a runtime that passivates idle instances to disk, and reactivates them when a request arrives for
+     * them. Each shard creates its store in the policy's directory. The definition is frozen if it has not been
+     * already.
+     * @param definition the state machine shared by every instance
+     * @param shardCount the number of shards, usually the number of cores
+     * @param mailboxCapacity the maximum number of requests queued per shard
+     * @param threadFactory creates the thread of each shard
+     * @param passivationPolicy when and where instances are passivated
+     * @throws NoEntryStateSetException if the definition has no entry state
+     * @throws IOException if a store cannot be created
+     */
+    public ShardedRuntime(StateMachine definition, int shardCount, int mailboxCapacity, ThreadFactory threadFactory,
+                          PassivationPolicy passivationPolicy) throws IOException {
+        this(definition, shardCount, mailboxCapacity, threadFactory, passivationPolicy,
+                openStores(definition, shardCount, passivationPolicy));
+    }
+
+    private ShardedRuntime(StateMachine definition, int shardCount, int mailboxCapacity, ThreadFactory threadFactory,
+                           PassivationPolicy passivationPolicy, PassivationStore[] stores) {
+        validate(definition, shardCount);
+        this.definition = definition;
+        int maxHotInstances = Integer.MAX_VALUE;
+        long maxIdleNanos = Long.MAX_VALUE;
+        if (passivationPolicy != null) {
+            maxHotInstances = passivationPolicy.getMaxHotInstances();
+            if (passivationPolicy.getMaxIdleTime() != null) {
+                maxIdleNanos = passivationPolicy.getMaxIdleTime().toNanos();
+            }
+        }
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(mailboxCapacity, stores == null ? null : stores[i], maxHotInstances, maxIdleNanos);
+        }
+        for (Shard shard : shards) {
+            shard.thread = threadFactory.newThread(shard::run);
+            shard.thread.start();
+        }
+    }
+
+    private static void validate(StateMachine definition, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1");
+        }
+        definition.freeze();
+        definition.getEntryStateId();
+    }
+
+    private static PassivationStore[] openStores(StateMachine definition, int shardCount,
+                                                 PassivationPolicy passivationPolicy) throws IOException {
+        validate(definition, shardCount);
+        Files.createDirectories(passivationPolicy.getDirectory());
+        final PassivationStore[] stores = new PassivationStore[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                stores[i] = new PassivationStore(passivationPolicy.getDirectory().resolve("shard-" + i + ".dat"),
+                        passivationPolicy.getCodec());
+            }
+        } catch (IOException e) {
+            for (PassivationStore store : stores) {
+                if (store != null) {
+                    try {
+                        store.close();
+                    } catch (IOException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                }
+            }
+            throw e;
+        }
+        return stores;
+    }
+
+    private static ThreadFactory daemonThreads() {
+        final AtomicInteger next = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, "stateful-shard-" + next.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Gets the state machine shared by every instance.
+     * @return the definition
+     */
+    public StateMachine getDefinition() {
+        return definition;
+    }
+
+    /**
+     * Gets the number of shards.
+     * @return the shard count
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Gets the shard that owns a key.
+     * @param key the instance key
+     * @return the shard index
+     */
+    public int getShardOf(long key) {
+        // the high bits pick the shard, as the shard's own map hashes on the low bits
+        return (int) (((LongIntMap.mix(key) >>> 32) * shards.length) >>> 32);
+    }
+
+    /**
+     * Queues the creation of an instance, in the entry state. If an instance with that key exists, only its context
+     * object is replaced.
+     *
+     * Note: like with {@link StateMachinePool}, {@link State#onEnterState(Object)} will not be called on the entry
+     * state.
+     * @param key the instance key
+     * @param context the context object passed to the instance's callbacks
+     * @return true if the request was queued, false if the shard's mailbox is full
+     */
+    public boolean add(long key, Object context) {
+        return send(ADD, key, context);
+    }
+
+    /**
+     * Queues the removal of an instance, without calling any callbacks.
+     * @param key the instance key
+     * @return true if the request was queued, false if the shard's mailbox is full
+     */
+    public boolean remove(long key) {
+        return send(REMOVE, key, null);
+    }
+
+    /**
+     * Queues an event for an instance, to be handled like {@link StateMachinePool#fire(int, Object, Object)}. Events
+     * for keys that have no instance are dropped.
+     * @param key the instance key
+     * @param event the event
+     * @return true if the event was queued, false if the shard's mailbox is full
+     */
+    public boolean fire(long key, Object event) {
+        if (event == null) {
+            throw new NullPointerException("Events cannot be null");
+        }
+        return send(EVENT, key, event);
+    }
+
+    /**
+     * Asks every shard to update each of its instances once, after the requests queued before this call, and before
+     * those queued after it.
+     */
+    public void tick() {
+        checkOpen();
+        for (Shard shard : shards) {
+            final long after = shard.mailbox.offered();
+            shard.tickAfter.accumulateAndGet(after, Math::max);
+            shard.wake();
+        }
+    }
+
+    /**
+     * Gets the current state of an instance, once the requests queued before this call have been handled.
+     * @param key the instance key
+     * @return a stage that completes with the state, or with null if there is no instance with that key
+     * @throws IllegalStateException if the shard's mailbox is full
+     */
+    public CompletionStage<State> getCurrentState(long key) {
+        final CompletableFuture<State> result = new CompletableFuture<>();
+        if (!send(QUERY, key, result)) {
+            throw new IllegalStateException("Mailbox is full");
+        }
+        return result;
+    }
+
+    /**
+     * Takes a copy of the measurements of a shard.
+     * @param shard the shard index
+     * @return the measurements
+     */
+    public ShardMetrics getShardMetrics(int shard) {
+        final Shard owner = shards[shard];
+        return new ShardMetrics(shard, owner.mailbox.size(), owner.instanceCount, owner.passivatedCount,
+                owner.eventLatency.snapshot(), owner.tickDuration.snapshot());
+    }
+
+    /**
+     * Handles every request queued so far, and stops the shard threads. No request may be made afterwards.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        boolean interrupted = false;
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard.thread);
+            while (shard.thread.isAlive()) {
+                try {
+                    shard.thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("This runtime has been closed");
+        }
+    }
+
+    private boolean send(int kind, long key, Object payload) {
+        checkOpen();
+        final Shard shard = shards[getShardOf(key)];
+        if (!shard.mailbox.offer(new Message(kind, key, payload, System.nanoTime()))) {
+            return false;
+        }
+        shard.wake();
+        return true;
+    }
+
+    private static final class Message {
+
+        final int kind;
+
+        final long key;
+
+        final Object payload;
+
+        final long sentAt;
+
+        Message(int kind, long key, Object payload, long sentAt) {
+            this.kind = kind;
+            this.key = key;
+            this.payload = payload;
+            this.sentAt = sentAt;
+        }
+    }
+
+    /**
+     * A shard's instances are kept dense, in indices 0 to {@code count} of its pool: removing an instance moves the
+     * last one into its slot, so a tick is a single pass over the pool. With passivation, the instances are also
+     * linked in a list from the most to the least recently used, through {@code newer} and {@code older}, so that
+     * the instance to passivate is always at the tail.
+     */
+    private final class Shard {
+
+        final MpscMailbox mailbox;
+
+        /**
+         * The number of requests that must have been handled before the requested tick runs, or -1 if no tick is
+         * requested.
+         */
+        final AtomicLong tickAfter = new AtomicLong(-1);
+
+        final LatencyHistogram eventLatency = new LatencyHistogram(), tickDuration = new LatencyHistogram();
+
+        final StateMachinePool pool = new StateMachinePool(definition, 16);
+
+        final LongIntMap instances = new LongIntMap();
+
+        final PassivationStore store;
+
+        final int maxHotInstances;
+
+        final long maxIdleNanos;
+
+        long[] keys = new long[16];
+
+        Object[] contexts = new Object[16];
+
+        long[] lastUsed = new long[16];
+
+        int[] newer = new int[16], older = new int[16];
+
+        int newest = -1, oldest = -1;
+
+        final IntFunction<Object> contextOf = instance -> contexts[instance];
+
+        int count;
+
+        volatile int instanceCount, passivatedCount;
+
+        volatile boolean idle;
+
+        Thread thread;
+
+        Shard(int mailboxCapacity, PassivationStore store, int maxHotInstances, long maxIdleNanos) {
+            mailbox = new MpscMailbox(mailboxCapacity);
+            this.store = store;
+            this.maxHotInstances = maxHotInstances;
+            this.maxIdleNanos = maxIdleNanos;
+        }
+
+        void wake() {
+            if (idle) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void run() {
+            try {
+                loop();
+            } finally {
+                if (store != null) {
+                    try {
+                        store.close();
+                    } catch (Throwable t) {
+                        report(t);
+                    }
+                }
+            }
+        }
+
+        private void loop() {
+            while (true) {
+                boolean worked = tickIfDue();
+                Message message;
+                while ((message = (Message) mailbox.poll()) != null) {
+                    worked = true;
+                    try {
+                        handle(message);
+                    } catch (Throwable t) {
+                        report(t);
+                    }
+                    tickIfDue();
+                }
+                if (store != null) {
+                    try {
+                        passivateIdle();
+                    } catch (Throwable t) {
+                        report(t);
+                    }
+                }
+                if (!worked) {
+                    if (closed) {
+                        // requests made before closing were published before the flag was read
+                        if (mailbox.size() == 0 && tickAfter.get() < 0) {
+                            return;
+                        }
+                        continue;
+                    }
+                    idle = true;
+                    // a request may have arrived after the last poll, but before the flag was set
+                    if (mailbox.size() == 0 && tickAfter.get() < 0) {
+                        // requests, ticks and closing unpark the thread; only passivation has a deadline
+                        final long timeout = nanosUntilIdle();
+                        if (timeout < 0) {
+                            LockSupport.park(this);
+                        } else {
+                            LockSupport.parkNanos(this, timeout);
+                        }
+                    }
+                    idle = false;
+                }
+            }
+        }
+
+        /**
+         * Runs the requested tick, once exactly the requests queued before it have been handled.
+         * @return true if the tick ran
+         */
+        private boolean tickIfDue() {
+            final long after = tickAfter.get();
+            if (after < 0 || mailbox.polled() < after || !tickAfter.compareAndSet(after, -1)) {
+                return false;
+            }
+            final long start = System.nanoTime();
+            try {
+                pool.updateRange(0, count, contextOf);
+            } catch (Throwable t) {
+                report(t);
+            }
+            tickDuration.record(System.nanoTime() - start);
+            return true;
+        }
+
+        private void handle(Message message) throws IOException {
+            int instance = instances.get(message.key);
+            switch (message.kind) {
+                case ADD:
+                    if (instance < 0) {
+                        instance = reactivate(message.key);
+                    }
+                    if (instance >= 0) {
+                        contexts[instance] = message.payload;
+                        touch(instance);
+                    } else {
+                        add(message.key, definition.getEntryStateId(), message.payload);
+                    }
+                    passivateOverflow();
+                    break;
+                case REMOVE:
+                    if (instance >= 0) {
+                        remove(message.key, instance);
+                    } else if (store != null) {
+                        store.remove(message.key);
+                        passivatedCount = store.size();
+                    }
+                    break;
+                case EVENT:
+                    if (instance < 0) {
+                        instance = reactivate(message.key);
+                    }
+                    if (instance >= 0) {
+                        touch(instance);
+                        pool.fire(instance, message.payload, contexts[instance]);
+                        passivateOverflow();
+                    }
+                    eventLatency.record(System.nanoTime() - message.sentAt);
+                    break;
+                case QUERY:
+                    @SuppressWarnings("unchecked")
+                    final CompletableFuture<State> result = (CompletableFuture<State>) message.payload;
+                    if (instance >= 0) {
+                        result.complete(pool.getCurrentState(instance));
+                    } else {
+                        // a passivated instance is read without being reactivated
+                        final int stateId = store == null ? -1 : store.readState(message.key);
+                        result.complete(stateId < 0 ? null : definition.getState(stateId));
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown message kind " + message.kind);
+            }
+        }
+
+        /**
+         * Brings a passivated instance back into memory.
+         * @return the index of the instance, or -1 if it was not passivated
+         */
+        private int reactivate(long key) throws IOException {
+            if (store == null) {
+                return -1;
+            }
+            final int stateId = store.readState(key);
+            if (stateId < 0) {
+                return -1;
+            }
+            final int instance = add(key, stateId, store.readContext());
+            store.remove(key);
+            passivatedCount = store.size();
+            return instance;
+        }
+
+        private void passivateOverflow() throws IOException {
+            while (count > maxHotInstances) {
+                passivate(oldest);
+            }
+        }
+
+        /**
+         * Gets how long until the least recently used instance has been idle for longer than the policy allows.
+         * @return the time to wait before passivating it, or -1 if no instance is waiting to be passivated
+         */
+        private long nanosUntilIdle() {
+            if (store == null || maxIdleNanos == Long.MAX_VALUE || oldest < 0) {
+                return -1;
+            }
+            final long remaining = maxIdleNanos - (System.nanoTime() - lastUsed[oldest]) + 1;
+            return Math.max(remaining, RETRY_NANOS);
+        }
+
+        private void passivateIdle() throws IOException {
+            if (maxIdleNanos == Long.MAX_VALUE || oldest < 0) {
+                return;
+            }
+            final long now = System.nanoTime();
+            while (oldest >= 0 && now - lastUsed[oldest] > maxIdleNanos) {
+                passivate(oldest);
+            }
+        }
+
+        private void passivate(int instance) throws IOException {
+            final long key = keys[instance];
+            // written first, so the instance stays in memory if writing fails
+            store.write(key, pool.states[instance], contexts[instance]);
+            remove(key, instance);
+            passivatedCount = store.size();
+        }
+
+        private int add(long key, int stateId, Object context) {
+            final int instance = count++;
+            if (count > pool.getCapacity()) {
+                pool.ensureCapacity(count);
+            }
+            if (count > keys.length) {
+                final int capacity = pool.getCapacity();
+                keys = Arrays.copyOf(keys, capacity);
+                contexts = Arrays.copyOf(contexts, capacity);
+                lastUsed = Arrays.copyOf(lastUsed, capacity);
+                newer = Arrays.copyOf(newer, capacity);
+                older = Arrays.copyOf(older, capacity);
+            }
+            pool.states[instance] = stateId;
+            keys[instance] = key;
+            contexts[instance] = context;
+            instances.put(key, instance);
+            newer[instance] = -1;
+            older[instance] = -1;
+            link(instance);
+            instanceCount = count;
+            return instance;
+        }
+
+        private void remove(long key, int instance) {
+            instances.remove(key);
+            unlink(instance);
+            final int last = --count;
+            if (instance != last) {
+                pool.states[instance] = pool.states[last];
+                keys[instance] = keys[last];
+                contexts[instance] = contexts[last];
+                lastUsed[instance] = lastUsed[last];
+                instances.put(keys[instance], instance);
+                // the last instance takes the removed one's place in the list too
+                newer[instance] = newer[last];
+                older[instance] = older[last];
+                if (newer[last] >= 0) {
+                    older[newer[last]] = instance;
+                } else {
+                    newest = instance;
+                }
+                if (older[last] >= 0) {
+                    newer[older[last]] = instance;
+                } else {
+                    oldest = instance;
+                }
+            }
+            contexts[last] = null;
+            instanceCount = count;
+        }
+
+        /**
+         * Marks an instance as the most recently used.
+         */
+        private void touch(int instance) {
+            if (newest != instance) {
+                unlink(instance);
+                link(instance);
+            } else {
+                lastUsed[instance] = System.nanoTime();
+            }
+        }
+
+        private void link(int instance) {
+            lastUsed[instance] = System.nanoTime();
+            newer[instance] = -1;
+            older[instance] = newest;
+            if (newest >= 0) {
+                newer[newest] = instance;
+            } else {
+                oldest = instance;
+            }
+            newest = instance;
+        }
+
+        private void unlink(int instance) {
+            if (newer[instance] >= 0) {
+                older[newer[instance]] = older[instance];
+            } else {
+                newest = older[instance];
+            }
+            if (older[instance] >= 0) {
+                newer[older[instance]] = newer[instance];
+            } else {
+                oldest = newer[instance];
+            }
+        }
+
+        private void report(Throwable t) {
+            final Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+        }
+    }
+}
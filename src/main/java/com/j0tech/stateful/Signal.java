@@ -0,0 +1,100 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An observable value read by transition guards. A transition that declares the signals its guard depends on with
+ * {@link Transition#dependsOn(Signal[])} only has its guard evaluated again once one of them has changed, so that an
+ * idle state machine whose guards wait on signals costs almost nothing to update.
+ *
+ * Every change bumps the signal's version. A frozen state machine caches the result of a dependency-tracked guard
+ * along with the versions of its signals, and the guard is dirty when they differ. Guards are only checked while
+ * their start state is active, so only the guards of active states are ever evaluated again.
+ * @param <T> the type of the value
+ */
+public final class Signal<T> {
+
+    private volatile T value;
+
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Constructs a signal with an initial value.
+     * @param value the initial value
+     */
+    public Signal(T value) {
+        this.value = value;
+    }
+
+    /**
+     * Gets the value.
+     * @return the value
+     */
+    public T get() {
+        return value;
+    }
+
+    /**
+     * Sets the value. The guards that depend on this signal are marked dirty, unless the value equals the current one.
+     * @param value the new value
+     */
+    public void set(T value) {
+        if (Objects.equals(this.value, value)) {
+            return;
+        }
+        this.value = value;
+        markChanged();
+    }
+
+    /**
+     * Marks the guards that depend on this signal dirty. Call this after mutating the value in place.
+     */
+    public void markChanged() {
+        // the value is written before the version, so a guard that sees the new version also sees the new value
+        version.incrementAndGet();
+    }
+
+    /**
+     * Gets the number of times this signal has changed.
+     * @return the version
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Sums the versions of some signals. Versions only grow, so the sum changes whenever one of the signals does.
+     */
+    static long sumVersions(Signal<?>[] signals) {
+        long sum = 0;
+        for (Signal<?> signal : signals) {
+            sum += signal.version.get();
+        }
+        return sum;
+    }
+}
@@ -24,13 +24,22 @@ TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
 
 package com.j0tech.stateful;
 
+import com.j0tech.stateful.exceptions.StateMachineFrozenException;
 import com.j0tech.stateful.exceptions.TransitionAlreadyManagedException;
 import com.j0tech.stateful.exceptions.TransitionPointsToItselfException;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a state in a {@link StateMachine}.
@@ -39,14 +48,47 @@ public abstract class State {
 
     private String stateName;
 
-    List<Transition> managedTransitions;
+    IdentityRegistry<Transition> managedTransitions;
 
     /**
-     * Constructs a state with the default name.
+     * The event-driven transitions out of this state, by the event types they react to. Only allocated once such a
+     * transition is added, as most states have none.
+     */
+    private Map<Class<?>, Transition[]> eventTransitions;
+
+    /**
+     * The candidates for each concrete class of event fired at this state so far, gathered from every class and
+     * interface it extends. Concurrent, as instances of a pool may be fired at from several threads.
+     */
+    private volatile ConcurrentHashMap<Class<?>, Transition[]> resolvedEventTransitions;
+
+    /**
+     * The polled transitions out of this state, in descending priority order, and in the order they were added among
+     * equal priorities: the order the compiled graph checks them in.
+     */
+    Transition[] polledTransitions = NO_TRANSITIONS;
+
+    boolean frozen;
+
+    private static final Region[] NO_REGIONS = new Region[0];
+
+    private static final Transition[] NO_TRANSITIONS = new Transition[0];
+
+    /**
+     * An already completed stage, returned by the asynchronous callbacks that complete synchronously.
+     */
+    static final CompletionStage<Void> COMPLETED =
+            CompletableFuture.<Void>completedFuture(null).minimalCompletionStage();
+
+    Region[] regions = NO_REGIONS;
+
+    Region parentRegion;
+
+    /**
+     * Constructs a state with the default name. The name is only built the first time it is asked for.
      */
     public State() {
-        stateName = getClass().getName() + "@" + Integer.toHexString(hashCode());
-        managedTransitions = new ArrayList<>();
+        managedTransitions = new IdentityRegistry<>();
     }
 
     /**
@@ -55,7 +97,7 @@ public abstract class State {
      */
     public State(String name) {
         stateName = name;
-        managedTransitions = new ArrayList<>();
+        managedTransitions = new IdentityRegistry<>();
     }
 
     /**
@@ -74,55 +116,308 @@ public abstract class State {
      */
     public abstract void onExitState();
 
-    private boolean checkIfTransitionIsManaged(Transition transition) {
-        for (Transition managedTransition : managedTransitions) {
-            if (transition == managedTransition) {
+    /**
+     * Called when an instance in a {@link StateMachinePool} enters this state. By default, this calls
+     * {@link #onEnterState()}.
+     * @param context the context object the instance is being updated with
+     */
+    public void onEnterState(Object context) {
+        onEnterState();
+    }
+
+    /**
+     * While an instance in a {@link StateMachinePool} is in this state, this function will be called every time
+     * the instance is updated. By default, this calls {@link #whileInState()}.
+     * @param context the context object the instance is being updated with
+     */
+    public void whileInState(Object context) {
+        whileInState();
+    }
+
+    /**
+     * Called when an instance in a {@link StateMachinePool} leaves this state. By default, this calls
+     * {@link #onExitState()}.
+     * @param context the context object the instance is being updated with
+     */
+    public void onExitState(Object context) {
+        onExitState();
+    }
+
+    /**
+     * Called when an {@link AsyncStateMachine} enters this state. The state machine is transitioning until the
+     * returned stage completes. By default, this calls {@link #onEnterState()}, and returns a completed stage.
+     * @return a stage that completes when entering this state is done
+     */
+    public CompletionStage<Void> onEnterStateAsync() {
+        onEnterState();
+        return COMPLETED;
+    }
+
+    /**
+     * Called when an {@link AsyncStateMachine} leaves this state. The state machine is transitioning until the
+     * returned stage completes. By default, this calls {@link #onExitState()}, and returns a completed stage.
+     * @return a stage that completes when leaving this state is done
+     */
+    public CompletionStage<Void> onExitStateAsync() {
+        onExitState();
+        return COMPLETED;
+    }
+
+    /**
+     * Checks if this state accepts the input that led to it, when the state machine is run as a recognizer, for
+     * example by an {@link NfaRunner}. By default, this returns false.
+     * @return true if this state is accepting, false otherwise
+     */
+    public boolean isAccepting() {
+        return false;
+    }
+
+    /**
+     * Checks if this state's callbacks have no side effects, so that a {@link GraphOptimizer} may merge it with an
+     * equivalent state, or remove it. By default, this returns false.
+     * @return true if this state's callbacks have no side effects, false otherwise
+     */
+    public boolean isSideEffectFree() {
+        return false;
+    }
+
+    void freeze() {
+        frozen = true;
+    }
+
+    /**
+     * Makes this state a composite state, by adding a region of child states to it. While this state is active, one
+     * state of each of its regions is active as well, and the transitions out of this state apply to all of them.
+     * A state with several regions runs them in parallel.
+     *
+     * Regions are only honored by a {@link Statechart}.
+     * @param region the region to add
+     * @throws StateMachineFrozenException if this state belongs to a frozen state machine
+     */
+    public void addRegion(Region region) {
+        if (frozen) {
+            throw new StateMachineFrozenException(this);
+        }
+        if (region.owner != null) {
+            throw new IllegalArgumentException(String.format(Locale.getDefault(), "Region %s already belongs to " +
+                    "state %s", region.toString(), region.owner.toString()));
+        }
+        region.owner = this;
+        regions = Arrays.copyOf(regions, regions.length + 1);
+        regions[regions.length - 1] = region;
+    }
+
+    /**
+     * Gets the composite state this state is a child of.
+     * @return the parent state, or null if this state is not in a {@link Region} of another state
+     */
+    public State getParent() {
+        return parentRegion == null ? null : parentRegion.owner;
+    }
+
+    private void indexPolled(Transition transition) {
+        if (transition.isEventDriven()) {
+            return;
+        }
+        final Transition[] existing = polledTransitions;
+        int index = existing.length;
+        while (index > 0 && existing[index - 1].getPriority() < transition.getPriority()) {
+            index--;
+        }
+        final Transition[] grown = new Transition[existing.length + 1];
+        System.arraycopy(existing, 0, grown, 0, index);
+        grown[index] = transition;
+        System.arraycopy(existing, index, grown, index + 1, existing.length - index);
+        polledTransitions = grown;
+    }
+
+    private void indexEventTypes(Transition transition) {
+        resolvedEventTransitions = null;
+        if (transition.eventTypes.length != 0 && eventTransitions == null) {
+            eventTransitions = new HashMap<>();
+        }
+        for (Class<?> eventType : transition.eventTypes) {
+            final Transition[] existing = eventTransitions.get(eventType);
+            if (existing == null) {
+                eventTransitions.put(eventType, new Transition[] {transition});
+            } else if (!containsIdentical(existing, transition)) {
+                // keep candidates in priority order, and in the order they were added among equal priorities
+                int index = existing.length;
+                while (index > 0 && existing[index - 1].getPriority() < transition.getPriority()) {
+                    index--;
+                }
+                final Transition[] grown = new Transition[existing.length + 1];
+                System.arraycopy(existing, 0, grown, 0, index);
+                grown[index] = transition;
+                System.arraycopy(existing, index, grown, index + 1, existing.length - index);
+                eventTransitions.put(eventType, grown);
+            }
+        }
+    }
+
+    /**
+     * Replaces every transition out of this state. Used by {@link GraphOptimizer}, on states of an unfrozen state
+     * machine.
+     */
+    void replaceTransitions(Iterable<Transition> transitions) {
+        managedTransitions = new IdentityRegistry<>();
+        eventTransitions = null;
+        resolvedEventTransitions = null;
+        polledTransitions = NO_TRANSITIONS;
+        for (Transition transition : transitions) {
+            managedTransitions.register(transition);
+            indexPolled(transition);
+            indexEventTypes(transition);
+        }
+    }
+
+    Transition[] getEventTransitions(Class<?> eventType) {
+        return eventTransitions == null ? null : eventTransitions.get(eventType);
+    }
+
+    /**
+     * Finds the first transition out of this state that reacts to an event and accepts it, in priority order.
+     * @return the transition, or null if no transition accepts the event
+     */
+    Transition findEventTransition(Object event, Object context) {
+        if (eventTransitions == null) {
+            return null;
+        }
+        ConcurrentHashMap<Class<?>, Transition[]> resolved = resolvedEventTransitions;
+        if (resolved == null) {
+            // two threads may both create the map, in which case one of them only loses its entries
+            resolved = new ConcurrentHashMap<>();
+            resolvedEventTransitions = resolved;
+        }
+        final Class<?> eventClass = event.getClass();
+        Transition[] candidates = resolved.get(eventClass);
+        if (candidates == null) {
+            candidates = resolved.computeIfAbsent(eventClass, this::resolveEventTransitions);
+        }
+        for (Transition candidate : candidates) {
+            if (candidate.acceptsEvent(event, context)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gathers the transitions that react to a class of event, whether they are registered on the class itself, one of
+     * its superclasses, or an interface they implement, in priority order, and in the order they were added among
+     * equal priorities.
+     */
+    private Transition[] resolveEventTransitions(Class<?> eventClass) {
+        final Set<Class<?>> types = new LinkedHashSet<>();
+        for (Class<?> type = eventClass; type != null; type = type.getSuperclass()) {
+            types.add(type);
+        }
+        final List<Class<?>> classes = new ArrayList<>(types);
+        for (Class<?> type : classes) {
+            addInterfaces(type, types);
+        }
+        final List<Transition> candidates = new ArrayList<>();
+        for (Class<?> type : types) {
+            final Transition[] registered = eventTransitions.get(type);
+            if (registered != null) {
+                for (Transition transition : registered) {
+                    // a transition registered on several of the types is only a candidate once
+                    if (!containsIdentical(candidates, transition)) {
+                        candidates.add(transition);
+                    }
+                }
+            }
+        }
+        // the whole hierarchy is merged, so a transition on a supertype can outrank one on the class itself
+        candidates.sort(Comparator.comparingInt(Transition::getPriority).reversed()
+                .thenComparingInt(managedTransitions::idOf));
+        return candidates.toArray(new Transition[0]);
+    }
+
+    private static boolean containsIdentical(Transition[] transitions, Transition transition) {
+        for (Transition candidate : transitions) {
+            if (candidate == transition) {
                 return true;
             }
         }
         return false;
     }
 
+    private static boolean containsIdentical(List<Transition> transitions, Transition transition) {
+        for (Transition candidate : transitions) {
+            if (candidate == transition) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addInterfaces(Class<?> type, Set<Class<?>> types) {
+        for (Class<?> implemented : type.getInterfaces()) {
+            if (types.add(implemented)) {
+                addInterfaces(implemented, types);
+            }
+        }
+    }
+
     /**
      * Adds a transition that <b>starts</b> at this state.
      * @param transition the transition to add
+     * @throws StateMachineFrozenException if this state belongs to a frozen state machine
      */
     public void addTransition(Transition transition) {
-        if (checkIfTransitionIsManaged(transition)) {
+        if (frozen) {
+            throw new StateMachineFrozenException(this);
+        }
+        if (managedTransitions.contains(transition)) {
             throw new TransitionAlreadyManagedException(transition);
         }
-        if (transition.endState == this) {
+        if (transition.endState == this && !transition.allowsSelfLoop()) {
             throw new TransitionPointsToItselfException(transition);
         }
 
         transition.registerStartState(this);
-        managedTransitions.add(transition);
+        managedTransitions.register(transition);
+        indexPolled(transition);
+        indexEventTypes(transition);
     }
 
     /**
      * Adds transitions that <b>start</b> at this state.
      * @param transitions the transitions to add
+     * @throws StateMachineFrozenException if this state belongs to a frozen state machine
      */
     public void addTransitions(Transition... transitions) {
+        if (frozen) {
+            throw new StateMachineFrozenException(this);
+        }
+        final int previousSize = managedTransitions.size();
         for (int i = 0; i < transitions.length; i++) {
-            if (checkIfTransitionIsManaged(transitions[i])) {
-                throw new TransitionAlreadyManagedException(transitions[i], String.format(Locale.getDefault(),
+            if (transitions[i].endState == this && !transitions[i].allowsSelfLoop()) {
+                managedTransitions.truncate(previousSize);
+                throw new TransitionPointsToItselfException(transitions[i], String.format(Locale.getDefault(),
                         "This transition was added by a call to addTransitions(), at index %d", i));
             }
-            if (transitions[i].endState == this) {
-                throw new TransitionPointsToItselfException(transitions[i], String.format(Locale.getDefault(),
+            if (managedTransitions.register(transitions[i]) < 0) {
+                // roll back the transitions registered so far, so a failed call leaves this state untouched
+                managedTransitions.truncate(previousSize);
+                throw new TransitionAlreadyManagedException(transitions[i], String.format(Locale.getDefault(),
                         "This transition was added by a call to addTransitions(), at index %d", i));
             }
         }
 
         for (Transition transition : transitions) {
             transition.registerStartState(this);
+            indexPolled(transition);
+            indexEventTypes(transition);
         }
-        managedTransitions.addAll(Arrays.asList(transitions));
     }
 
     @Override
     public String toString() {
+        if (stateName == null) {
+            stateName = getClass().getName() + "@" + Integer.toHexString(hashCode());
+        }
         return stateName;
     }
 }
@@ -24,23 +24,77 @@ TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
 
 package com.j0tech.stateful;
 
+import com.j0tech.stateful.exceptions.MicrostepLimitExceededException;
 import com.j0tech.stateful.exceptions.NoEntryStateSetException;
 import com.j0tech.stateful.exceptions.StateAlreadyManagedException;
+import com.j0tech.stateful.exceptions.StateMachineFrozenException;
 import com.j0tech.stateful.exceptions.StateNotManagedException;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.Locale;
 
 /**
  * A simple implementation of a non-deterministic finite state machine.
+ *
+ * {@link #update()} and {@link #fire(Object)} follow one transition at a time. To track every state the machine could
+ * be in at once, run it with an {@link NfaRunner}.
+ *
+ * {@link #update()}, {@link #fire(Object)} and {@link #setCurrentState(State)}, and their counterparts in
+ * {@link StateMachinePool}, do not allocate, apart from what the callbacks themselves allocate. The exceptions are
+ * entering a state with {@link TimedTransition}s, which schedules a timer for each of them, a counter of
+ * {@link StateMachineMetrics} growing the first few times it is contended, and exceptions being thrown.
  */
 public final class StateMachine {
 
-    private List<State> managedStates;
+    /**
+     * The default for {@link #setMaxMicrosteps(int)}.
+     */
+    public static final int DEFAULT_MAX_MICROSTEPS = 100;
+
+    private static final VarHandle CURRENT_STATE;
+
+    static {
+        try {
+            CURRENT_STATE = MethodHandles.lookup().findVarHandle(StateMachine.class, "currentState", State.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private IdentityRegistry<State> managedStates;
+
+    private volatile State entryState, currentState;
+
+    private volatile boolean frozen;
+
+    private volatile ConcurrencyMode concurrencyMode = ConcurrencyMode.SYNCHRONIZED;
+
+    private volatile StepMode stepMode = StepMode.ALL_MATCHING;
+
+    private volatile int maxMicrosteps = DEFAULT_MAX_MICROSTEPS;
+
+    private TimingWheel timingWheel;
+
+    private volatile StateMachineActor actor;
+
+    private TransitionJournal journal = TransitionJournal.NONE;
+
+    private long journalInstance;
+
+    private MetricsProbe probe = MetricsProbe.NONE;
+
+    private TimingWheel.Timeout[] armedTimeouts = new TimingWheel.Timeout[0];
 
-    private State entryState, currentState;
+    private int armedTimeoutCount;
+
+    private long stateGeneration;
+
+    private Automaton automaton;
+
+    private CompiledGraph graph;
+
+    private int currentStateId;
 
     private final Object lock = new Object();
 
@@ -48,47 +102,48 @@ public final class StateMachine {
      * Construct a new state machine.
      */
     public StateMachine() {
-        managedStates = new ArrayList<>();
+        managedStates = new IdentityRegistry<>();
     }
 
     private boolean checkIfStateIsManaged(State state) {
-        for (State existingState : managedStates) {
-            if (existingState == state) {
-                return true;
-            }
-        }
-        return false;
+        return managedStates.contains(state);
     }
 
     /**
      * Adds a state to the state machine.
      * @param state state to add
+     * @throws StateMachineFrozenException if the state machine has been frozen
      */
     public void addState(State state) {
-        // check if we already manage this state
-        if (checkIfStateIsManaged(state)) {
+        if (frozen) {
+            throw new StateMachineFrozenException();
+        }
+        // register the state, unless we already manage it
+        if (managedStates.register(state) < 0) {
             // if so, reject it
             throw new StateAlreadyManagedException(state);
         }
-
-        managedStates.add(state);
     }
 
     /**
      * Adds multiple states to the state machine.
      * @param states states to add
+     * @throws StateMachineFrozenException if the state machine has been frozen
      */
     public void addStates(State... states) {
-        // check if any of the states are already managed
+        if (frozen) {
+            throw new StateMachineFrozenException();
+        }
+        final int previousSize = managedStates.size();
         for (int i = 0; i < states.length; i++) {
-            if (checkIfStateIsManaged(states[i])) {
-                // if so, reject it, but explain which state it was
+            if (managedStates.register(states[i]) < 0) {
+                // if a state is already managed, roll back the states registered so far and reject it, but
+                // explain which state it was
+                managedStates.truncate(previousSize);
                 throw new StateAlreadyManagedException(states[i], String.format(Locale.getDefault(), "This " +
                         "state was added by a call to addStates(), at index %d", i));
             }
         }
-
-        managedStates.addAll(Arrays.asList(states));
     }
 
     /**
@@ -98,34 +153,298 @@ public final class StateMachine {
      * @param state entry state
      */
     public void setEntryState(State state) {
+        if (!checkIfStateIsManaged(state)) {
+            throw new StateNotManagedException(state);
+        }
+        if (concurrencyMode == ConcurrencyMode.LOCK_FREE) {
+            entryState = state;
+            return;
+        }
         synchronized (lock) {
-            if (!checkIfStateIsManaged(state)) {
-                throw new StateNotManagedException(state);
-            }
-
             entryState = state;
         }
     }
 
     /**
      * Forces the state machine to switch to the specified state.
+     *
+     * In {@link ConcurrencyMode#LOCK_FREE} mode, the switch takes effect atomically, before
+     * {@link State#onExitState()} is called on the previous state.
      * @param state the state to switch to
      */
     public void setCurrentState(State state) {
+        if (!checkIfStateIsManaged(state)) {
+            throw new StateNotManagedException(state);
+        }
+        if (concurrencyMode == ConcurrencyMode.LOCK_FREE) {
+            State previousState = (State) CURRENT_STATE.getAndSet(this, state);
+            if (previousState == null) {
+                previousState = entryState;
+            }
+            if (previousState != null) {
+                previousState.onExitState();
+            }
+            state.onEnterState();
+            return;
+        }
+        synchronized (lock) {
+            if (currentState == null && entryState != null) {
+                currentState = entryState;
+                currentStateId = managedStates.idOf(entryState);
+            }
+            if (currentState == null) {
+                enterState(state, managedStates.idOf(state));
+                return;
+            }
+            final int previousStateId = currentStateId;
+            exitCurrentState();
+            enterState(state, managedStates.idOf(state));
+            journal.record(journalInstance, previousStateId, currentStateId, -1);
+            probe.stateChanged(0, previousStateId, currentStateId, -1);
+        }
+    }
+
+    /**
+     * Gets the state the state machine is currently in. This never blocks, in either {@link ConcurrencyMode}.
+     * @return the current state, the entry state if the state machine has not been updated yet, or null if neither
+     *         is set
+     */
+    public State getCurrentState() {
+        final State state = currentState;
+        return state != null ? state : entryState;
+    }
+
+    /**
+     * Sets how the state machine handles concurrent calls. Defaults to {@link ConcurrencyMode#SYNCHRONIZED}.
+     * @param mode the concurrency mode
+     * @throws StateMachineFrozenException if the state machine has been frozen
+     */
+    public void setConcurrencyMode(ConcurrencyMode mode) {
+        if (mode == null) {
+            throw new NullPointerException("Concurrency mode cannot be null");
+        }
+        synchronized (lock) {
+            if (frozen) {
+                throw new StateMachineFrozenException();
+            }
+            if (mode == ConcurrencyMode.LOCK_FREE && journal != TransitionJournal.NONE) {
+                throw new IllegalStateException("Transitions taken without locking cannot be journaled");
+            }
+            if (mode == ConcurrencyMode.LOCK_FREE && probe != MetricsProbe.NONE) {
+                throw new IllegalStateException("Transitions taken without locking cannot be measured");
+            }
+            if (mode == ConcurrencyMode.LOCK_FREE && timingWheel != null) {
+                throw new IllegalStateException("Timed transitions are not supported in lock-free mode");
+            }
+            concurrencyMode = mode;
+        }
+    }
+
+    /**
+     * Sets how many transitions {@link #update()} and {@link #fire(Object)} take per call, and how they are picked.
+     * Defaults to {@link StepMode#ALL_MATCHING}.
+     * @param mode the step mode
+     * @throws StateMachineFrozenException if the state machine has been frozen
+     */
+    public void setStepMode(StepMode mode) {
+        if (mode == null) {
+            throw new NullPointerException("Step mode cannot be null");
+        }
+        synchronized (lock) {
+            if (frozen) {
+                throw new StateMachineFrozenException();
+            }
+            stepMode = mode;
+        }
+    }
+
+    /**
+     * Gets how many transitions {@link #update()} and {@link #fire(Object)} take per call, and how they are picked.
+     * @return the step mode
+     */
+    public StepMode getStepMode() {
+        return stepMode;
+    }
+
+    /**
+     * Sets the maximum number of transitions one call may take in {@link StepMode#RUN_TO_COMPLETION} mode, before it
+     * gives up with a {@link MicrostepLimitExceededException}. Defaults to {@link #DEFAULT_MAX_MICROSTEPS}.
+     * @param limit the maximum number of transitions per call
+     */
+    public void setMaxMicrosteps(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("The microstep limit must be at least 1");
+        }
+        maxMicrosteps = limit;
+    }
+
+    /**
+     * Sets the journal that this state machine's changes of state are recorded in, under the given instance ID.
+     * Freezes the state machine, so that its state and transition IDs no longer change.
+     * @param journal the journal, or {@link TransitionJournal#NONE} to stop recording
+     * @param instanceId the instance ID to record the changes under
+     * @throws IllegalStateException if the state machine is in {@link ConcurrencyMode#LOCK_FREE} mode
+     */
+    public void setJournal(TransitionJournal journal, long instanceId) {
+        if (journal == null) {
+            throw new NullPointerException("Journal cannot be null");
+        }
+        freeze();
         synchronized (lock) {
-            if (!checkIfStateIsManaged(state)) {
-                throw new StateNotManagedException(state);
+            if (concurrencyMode == ConcurrencyMode.LOCK_FREE && journal != TransitionJournal.NONE) {
+                throw new IllegalStateException("Transitions taken without locking cannot be journaled");
+            }
+            this.journal = journal;
+            journalInstance = instanceId;
+        }
+    }
+
+    /**
+     * Turns metrics on or off for this state machine. Freezes the state machine.
+     * @param metrics the metrics to record into, or null to stop recording
+     * @throws IllegalArgumentException if the metrics are for another state machine
+     * @throws IllegalStateException if the state machine is in {@link ConcurrencyMode#LOCK_FREE} mode
+     */
+    public void setMetrics(StateMachineMetrics metrics) {
+        if (metrics != null && metrics.getDefinition() != this) {
+            throw new IllegalArgumentException("Metrics belong to another state machine");
+        }
+        freeze();
+        synchronized (lock) {
+            if (concurrencyMode == ConcurrencyMode.LOCK_FREE && metrics != null) {
+                throw new IllegalStateException("Transitions taken without locking cannot be measured");
+            }
+            probe = metrics == null ? MetricsProbe.NONE : metrics.newProbe(1);
+        }
+    }
+
+    /**
+     * Sets the timing wheel that the timers of {@link TimedTransition}s are scheduled on. Without one, timed
+     * transitions are never taken.
+     *
+     * Note: timed transitions are not supported in {@link ConcurrencyMode#LOCK_FREE} mode. Once the state machine is
+     * run by a {@link StateMachineActor}, its timing wheel can no longer be changed, and expired timers are delivered
+     * through the actor's mailbox.
+     * @param wheel the timing wheel, or null to stop scheduling timers
+     * @throws IllegalStateException if the state machine is run by an actor
+     */
+    public void setTimingWheel(TimingWheel wheel) {
+        synchronized (lock) {
+            if (actor != null) {
+                throw new IllegalStateException("The timing wheel cannot be changed once the state machine is run " +
+                        "by an actor");
+            }
+            if (wheel != null && concurrencyMode == ConcurrencyMode.LOCK_FREE) {
+                throw new IllegalStateException("Timed transitions are not supported in lock-free mode");
+            }
+            cancelTimers();
+            timingWheel = wheel;
+            if (wheel != null && currentState != null) {
+                armTimers(currentState);
+            }
+        }
+    }
+
+    private void armTimers(State state) {
+        stateGeneration++;
+        if (timingWheel == null) {
+            return;
+        }
+        final Transition[] timedTransitions = state.getEventTransitions(TimerExpired.class);
+        if (timedTransitions == null) {
+            return;
+        }
+        if (armedTimeouts.length < timedTransitions.length) {
+            armedTimeouts = new TimingWheel.Timeout[timedTransitions.length];
+        }
+        for (Transition timedTransition : timedTransitions) {
+            final TimedTransition transition = (TimedTransition) timedTransition;
+            armedTimeouts[armedTimeoutCount++] = transition.arm(timingWheel,
+                    new TimerExpired(this, transition, stateGeneration));
+        }
+    }
+
+    private void cancelTimers() {
+        for (int i = 0; i < armedTimeoutCount; i++) {
+            armedTimeouts[i].cancel();
+            armedTimeouts[i] = null;
+        }
+        armedTimeoutCount = 0;
+    }
+
+    private void startIfNeeded() {
+        if (entryState == null) {
+            throw new NoEntryStateSetException();
+        }
+        if (currentState == null) {
+            currentState = entryState;
+            currentStateId = managedStates.idOf(entryState);
+            armTimers(currentState);
+        }
+    }
+
+    private void exitCurrentState() {
+        cancelTimers();
+        currentState.onExitState();
+    }
+
+    private void enterState(State state, int stateId) {
+        currentState = state;
+        currentStateId = stateId;
+        state.onEnterState();
+        armTimers(state);
+    }
+
+    void fireTimer(TimerExpired timer) {
+        final StateMachineActor owner = actor;
+        if (owner != null) {
+            // only the actor may drive the state machine, so the timer goes through its mailbox
+            if (!owner.deliver(timer)) {
+                // rather than lose the timeout, try again once the mailbox has had time to drain
+                timingWheel.schedule(1, timer);
             }
+            return;
+        }
+        synchronized (lock) {
+            fireTimerExclusive(timer);
+        }
+    }
 
-            currentState.onExitState();
-            currentState = state;
-            currentState.onEnterState();
+    /**
+     * Fires an expired timer, assuming the caller is the only thread driving the state machine.
+     */
+    void fireTimerExclusive(TimerExpired timer) {
+        // the timer may have expired just as its state was left, so check it still belongs to the current visit
+        if (timer.generation == stateGeneration) {
+            fireExclusive(timer);
         }
     }
 
+    /**
+     * Hands this state machine over to an actor, which becomes the only thread allowed to drive it.
+     */
+    void attachActor(StateMachineActor actor) {
+        synchronized (lock) {
+            if (this.actor != null) {
+                throw new IllegalStateException("State machine is already run by an actor");
+            }
+            this.actor = actor;
+        }
+    }
+
+    /**
+     * Gets how the state machine handles concurrent calls.
+     * @return the concurrency mode
+     */
+    public ConcurrencyMode getConcurrencyMode() {
+        return concurrencyMode;
+    }
+
     private void validateTransitionsOrThrow() {
-        for (State managedState : managedStates) {
-            for (Transition managedTransition : managedState.managedTransitions) {
+        for (int i = 0; i < managedStates.size(); i++) {
+            final IdentityRegistry<Transition> transitions = managedStates.get(i).managedTransitions;
+            for (int j = 0; j < transitions.size(); j++) {
+                final Transition managedTransition = transitions.get(j);
                 if (!checkIfStateIsManaged(managedTransition.endState)) {
                     throw new StateNotManagedException(managedTransition.endState, "Transition points to unmanaged state");
                 }
@@ -134,28 +453,451 @@ public final class StateMachine {
     }
 
     /**
-     * Updates the state machine.
+     * Validates the state machine once, and locks its graph against further modification. After this, states and
+     * transitions can no longer be added, and {@link #update()} no longer revalidates every transition on each call.
      *
-     * Note: make sure to set the entry state with {@link #setEntryState(State)} before calling this function.
+     * Calling this function more than once has no effect.
+     * @throws StateNotManagedException if a transition points to a state this state machine does not manage
      */
-    public void update() {
+    public void freeze() {
         synchronized (lock) {
-            if (entryState == null) {
-                throw new NoEntryStateSetException();
+            if (frozen) {
+                return;
             }
-            if (currentState == null) {
-                currentState = entryState;
+            validateTransitionsOrThrow();
+            for (int i = 0; i < managedStates.size(); i++) {
+                managedStates.get(i).freeze();
+            }
+            graph = new CompiledGraph(this);
+            frozen = true;
+        }
+    }
+
+    /**
+     * Checks if this state machine has been frozen with {@link #freeze()}.
+     * @return true if frozen, false otherwise
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Gets a fingerprint of this state machine's definition, computed from the classes of its states and transitions,
+     * the shape of its graph, and the symbols and delays of its {@link SymbolTransition}s and {@link TimedTransition}s.
+     * Two state machines built the same way, for example by the same code in different runs of a program, have the
+     * same fingerprint, so that their state IDs can be used interchangeably. Freezes the state machine.
+     * @return the fingerprint
+     * @see PoolSnapshot
+     */
+    public long getDefinitionFingerprint() {
+        return getGraph().fingerprint;
+    }
+
+    /**
+     * Gets the symbol-labelled transitions of this state machine, compiled into bitsets. Freezes the state machine.
+     */
+    Automaton getAutomaton() {
+        freeze();
+        synchronized (lock) {
+            if (automaton == null) {
+                automaton = Automaton.compile(this);
+            }
+            return automaton;
+        }
+    }
+
+    /**
+     * Gets the compiled graph of this state machine. Freezes the state machine.
+     */
+    CompiledGraph getGraph() {
+        freeze();
+        return graph;
+    }
+
+    /**
+     * Replaces every state of this unfrozen state machine. Used by {@link GraphOptimizer}.
+     */
+    void replaceStates(Iterable<State> states) {
+        synchronized (lock) {
+            if (frozen) {
+                throw new StateMachineFrozenException();
+            }
+            final IdentityRegistry<State> replacement = new IdentityRegistry<>();
+            for (State state : states) {
+                replacement.register(state);
+            }
+            managedStates = replacement;
+        }
+    }
+
+    State getEntryState() {
+        return entryState;
+    }
+
+    int getStateCount() {
+        return managedStates.size();
+    }
+
+    State getState(int id) {
+        return managedStates.get(id);
+    }
+
+    int getStateId(State state) {
+        return managedStates.idOf(state);
+    }
+
+    int getEntryStateId() {
+        final State entry = entryState;
+        if (entry == null) {
+            throw new NoEntryStateSetException();
+        }
+        return managedStates.idOf(entry);
+    }
+
+    /**
+     * Updates a single instance of this state machine's definition, whose current state is held by the caller.
+     * Unlike {@link #update()} in {@link StepMode#ALL_MATCHING} mode, the first transition whose conditions are met,
+     * in priority order, is taken, and no other transitions are checked, except in
+     * {@link StepMode#RUN_TO_COMPLETION} mode. Event-driven transitions are skipped.
+     * @param instance index of the instance
+     * @param stateId ID of the instance's current state
+     * @param context context object passed to the state and transition callbacks
+     * @param journal the journal to record the instance's changes of state in
+     * @param probe the probe to record the instance's metrics in
+     * @return ID of the instance's state after the update
+     */
+    int step(int instance, int stateId, Object context, TransitionJournal journal, MetricsProbe probe) {
+        final long start = probe.updateStarted();
+        graph.states[stateId].whileInState(context);
+        final int target = takeMicrosteps(instance, stateId, context, journal, probe, 0);
+        probe.updateFinished(start);
+        return target;
+    }
+
+    /**
+     * Takes the first enabled polled transition out of an instance's state, and in
+     * {@link StepMode#RUN_TO_COMPLETION} mode, keeps going until none is enabled.
+     * @return ID of the instance's state afterwards
+     */
+    private int takeMicrosteps(int instance, int stateId, Object context, TransitionJournal journal,
+                               MetricsProbe probe, int microsteps) {
+        final CompiledGraph graph = this.graph;
+        final Transition[] guards = graph.guards;
+        final boolean toCompletion = stepMode == StepMode.RUN_TO_COMPLETION;
+        search:
+        while (true) {
+            for (int i = graph.offsets[stateId], end = graph.offsets[stateId + 1]; i < end; i++) {
+                final Transition transition = guards[i];
+                if (graph.shouldActivate(i, context, probe)) {
+                    if (microsteps++ == maxMicrosteps) {
+                        throw new MicrostepLimitExceededException(graph.states[stateId], maxMicrosteps);
+                    }
+                    final int target = graph.targets[i];
+                    graph.states[stateId].onExitState(context);
+                    transition.onActivated(context);
+                    graph.states[target].onEnterState(context);
+                    journal.record(instance, stateId, target, graph.transitionIds[i]);
+                    probe.stateChanged(instance, stateId, target, graph.transitionIds[i]);
+                    stateId = target;
+                    if (toCompletion) {
+                        continue search;
+                    }
+                    return stateId;
+                }
             }
+            return stateId;
+        }
+    }
+
+    /**
+     * Dispatches an event to a single instance of this state machine's definition, whose current state is held by
+     * the caller.
+     * @param instance index of the instance
+     * @param stateId ID of the instance's current state
+     * @param event the event
+     * @param context context object passed to the state and transition callbacks
+     * @param journal the journal to record the instance's changes of state in
+     * @param probe the probe to record the instance's metrics in
+     * @return ID of the instance's state after the event was handled, or -1 if no transition was taken
+     */
+    int dispatch(int instance, int stateId, Object event, Object context, TransitionJournal journal,
+                 MetricsProbe probe) {
+        final State state = managedStates.get(stateId);
+        final Transition transition = state.findEventTransition(event, context);
+        if (transition == null) {
+            return -1;
+        }
+        state.onExitState(context);
+        transition.onActivated(context);
+        transition.endState.onEnterState(context);
+        final int target = managedStates.idOf(transition.endState);
+        final int transitionId = graph.transitions.idOf(transition);
+        journal.record(instance, stateId, target, transitionId);
+        probe.stateChanged(instance, stateId, target, transitionId);
+        return stepMode == StepMode.RUN_TO_COMPLETION
+                ? takeMicrosteps(instance, target, context, journal, probe, 1)
+                : target;
+    }
+
+    /**
+     * Updates the state machine. Event-driven transitions are not checked; see {@link #fire(Object)}.
+     *
+     * Note: make sure to set the entry state with {@link #setEntryState(State)} before calling this function. Unless
+     * the state machine has been frozen with {@link #freeze()}, every transition is validated on each call.
+     */
+    public void update() {
+        if (concurrencyMode == ConcurrencyMode.LOCK_FREE) {
+            updateLockFree();
+            return;
+        }
+        synchronized (lock) {
+            updateExclusive();
+        }
+    }
+
+    /**
+     * Updates the state machine, assuming the caller is the only thread driving it.
+     */
+    void updateExclusive() {
+        final long start = probe.updateStarted();
+        startIfNeeded();
+        if (!frozen) {
             validateTransitionsOrThrow();
-            currentState.whileInState();
-            for (Transition managedTransition : currentState.managedTransitions) {
-                if (managedTransition.shouldActivate()) {
-                    currentState.onExitState();
+        }
+        currentState.whileInState();
+        final StepMode mode = stepMode;
+        if (mode == StepMode.ALL_MATCHING) {
+            takeAllMatching();
+        } else {
+            takeMicrosteps(0, mode == StepMode.RUN_TO_COMPLETION);
+        }
+        probe.updateFinished(start);
+    }
+
+    private int getCurrentCompiledStateId() {
+        if (graph.states[currentStateId] != currentState) {
+            // the state was changed through the lock-free path, which does not track its ID
+            currentStateId = managedStates.idOf(currentState);
+        }
+        return currentStateId;
+    }
+
+    private void takeAllMatching() {
+        if (frozen) {
+            final CompiledGraph graph = this.graph;
+            final int stateId = getCurrentCompiledStateId();
+            final Transition[] guards = graph.guards;
+            for (int i = graph.offsets[stateId], end = graph.offsets[stateId + 1]; i < end; i++) {
+                final Transition managedTransition = guards[i];
+                if (graph.shouldActivate(i, probe)) {
+                    final int previousStateId = currentStateId;
+                    exitCurrentState();
                     managedTransition.onActivated();
-                    currentState = managedTransition.endState;
-                    currentState.onEnterState();
+                    final int target = graph.targets[i];
+                    enterState(graph.states[target], target);
+                    journal.record(journalInstance, previousStateId, target, graph.transitionIds[i]);
+                    probe.stateChanged(0, previousStateId, target, graph.transitionIds[i]);
                 }
             }
+            return;
+        }
+        // checked in the same order as the compiled graph's, so freezing does not change which transitions run first
+        for (final Transition managedTransition : currentState.polledTransitions) {
+            if (managedTransition.shouldActivate()) {
+                exitCurrentState();
+                managedTransition.onActivated();
+                enterState(managedTransition.endState, managedStates.idOf(managedTransition.endState));
+            }
+        }
+    }
+
+    /**
+     * Finds the transition to take out of a state of the compiled graph: the first polled transition whose conditions
+     * are met, in priority order.
+     * @return the index of the transition in the compiled graph, or -1 if none is enabled
+     */
+    private int selectCompiled(int stateId) {
+        for (int i = graph.offsets[stateId], end = graph.offsets[stateId + 1]; i < end; i++) {
+            if (graph.shouldActivate(i, probe)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the transition to take out of a state of an unfrozen state machine: the polled transition with the
+     * highest priority whose conditions are met, or the first one added among those with equal priority.
+     * @return the transition, or null if none is enabled
+     */
+    private static Transition selectRegistered(State state) {
+        Transition selected = null;
+        final IdentityRegistry<Transition> transitions = state.managedTransitions;
+        for (int i = 0; i < transitions.size(); i++) {
+            final Transition managedTransition = transitions.get(i);
+            if (!managedTransition.isEventDriven()
+                    && (selected == null || managedTransition.getPriority() > selected.getPriority())
+                    && managedTransition.shouldActivate()) {
+                selected = managedTransition;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Takes one selected transition, or keeps taking them until none is enabled.
+     * @param microsteps the number of transitions already taken by this call
+     * @param toCompletion true to keep going until no transition is enabled, false to take at most one
+     */
+    private void takeMicrosteps(int microsteps, boolean toCompletion) {
+        while (true) {
+            final Transition transition;
+            final int target, transitionId;
+            if (frozen) {
+                final int index = selectCompiled(getCurrentCompiledStateId());
+                if (index < 0) {
+                    return;
+                }
+                transition = graph.guards[index];
+                target = graph.targets[index];
+                transitionId = graph.transitionIds[index];
+            } else {
+                transition = selectRegistered(currentState);
+                if (transition == null) {
+                    return;
+                }
+                target = managedStates.idOf(transition.endState);
+                transitionId = -1;
+            }
+            if (microsteps++ == maxMicrosteps) {
+                throw new MicrostepLimitExceededException(currentState, maxMicrosteps);
+            }
+            final int previousStateId = currentStateId;
+            exitCurrentState();
+            transition.onActivated();
+            enterState(transition.endState, target);
+            journal.record(journalInstance, previousStateId, target, transitionId);
+            probe.stateChanged(0, previousStateId, target, transitionId);
+            if (!toCompletion) {
+                return;
+            }
+        }
+    }
+
+    private State startLockFree() {
+        final State state = currentState;
+        if (state != null) {
+            return state;
+        }
+        final State entry = entryState;
+        if (entry == null) {
+            throw new NoEntryStateSetException();
+        }
+        CURRENT_STATE.compareAndSet(this, null, entry);
+        return currentState;
+    }
+
+    private void updateLockFree() {
+        final State state = startLockFree();
+        if (!frozen) {
+            validateTransitionsOrThrow();
+        }
+        state.whileInState();
+        takeMicrostepsLockFree(state, 0, stepMode == StepMode.RUN_TO_COMPLETION);
+    }
+
+    private void takeMicrostepsLockFree(State state, int microsteps, boolean toCompletion) {
+        while (true) {
+            final Transition transition;
+            if (frozen) {
+                final int index = selectCompiled(managedStates.idOf(state));
+                transition = index < 0 ? null : graph.guards[index];
+            } else {
+                transition = selectRegistered(state);
+            }
+            if (transition == null) {
+                return;
+            }
+            if (microsteps++ == maxMicrosteps) {
+                throw new MicrostepLimitExceededException(state, maxMicrosteps);
+            }
+            if (!takeLockFree(state, transition) || !toCompletion) {
+                return;
+            }
+            state = transition.endState;
+        }
+    }
+
+    private boolean takeLockFree(State state, Transition transition) {
+        // the compare-and-set is the linearization point. if it fails, another thread has already moved the state
+        // machine out of this state, and this transition no longer applies
+        if (!CURRENT_STATE.compareAndSet(this, state, transition.endState)) {
+            return false;
+        }
+        state.onExitState();
+        transition.onActivated();
+        transition.endState.onEnterState();
+        return true;
+    }
+
+    /**
+     * Fires an event at the state machine. Only the transitions out of the current state that react to the event's
+     * type are checked, with {@link Transition#acceptsEvent(Object, Object)}, and the first one that accepts the event,
+     * in priority order, is taken. In {@link StepMode#RUN_TO_COMPLETION} mode, polled transitions are then taken until
+     * none is enabled.
+     *
+     * Note: make sure to set the entry state with {@link #setEntryState(State)} before calling this function.
+     * @param event the event
+     * @return true if a transition was taken, false otherwise
+     */
+    public boolean fire(Object event) {
+        if (event == null) {
+            throw new NullPointerException("Events cannot be null");
+        }
+        if (concurrencyMode == ConcurrencyMode.LOCK_FREE) {
+            final State state = startLockFree();
+            final Transition transition = state.findEventTransition(event, null);
+            if (transition == null) {
+                return false;
+            }
+            if (!frozen && !checkIfStateIsManaged(transition.endState)) {
+                throw new StateNotManagedException(transition.endState, "Transition points to unmanaged state");
+            }
+            if (!takeLockFree(state, transition)) {
+                return false;
+            }
+            if (stepMode == StepMode.RUN_TO_COMPLETION) {
+                takeMicrostepsLockFree(transition.endState, 1, true);
+            }
+            return true;
+        }
+        synchronized (lock) {
+            return fireExclusive(event);
+        }
+    }
+
+    /**
+     * Fires an event at the state machine, assuming the caller is the only thread driving it.
+     */
+    boolean fireExclusive(Object event) {
+        startIfNeeded();
+        final Transition transition = currentState.findEventTransition(event, null);
+        if (transition == null) {
+            return false;
+        }
+        if (!frozen && !checkIfStateIsManaged(transition.endState)) {
+            throw new StateNotManagedException(transition.endState, "Transition points to unmanaged state");
+        }
+        final int previousStateId = currentStateId;
+        exitCurrentState();
+        transition.onActivated();
+        enterState(transition.endState, managedStates.idOf(transition.endState));
+        final int transitionId = frozen ? graph.transitions.idOf(transition) : -1;
+        journal.record(journalInstance, previousStateId, currentStateId, transitionId);
+        probe.stateChanged(0, previousStateId, currentStateId, transitionId);
+        if (stepMode == StepMode.RUN_TO_COMPLETION) {
+            takeMicrosteps(1, true);
         }
+        return true;
     }
 }
@@ -0,0 +1,201 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a {@link StateMachine} as an actor: events are queued in a bounded mailbox, and drained in batches by one task
+ * at a time on an executor, so the state machine only ever has a single writer and its callbacks run without holding
+ * any lock.
+ *
+ * Producers never block. When the mailbox is full, {@link #tell(Object)} returns false, so overload shows up as queue
+ * depth rather than as threads waiting on a monitor. Any executor can be used, including one that starts a virtual
+ * thread per task, on runtimes that have them.
+ *
+ * Note: once a state machine is run by an actor, it must only be driven through that actor. The timers of its
+ * {@link TimedTransition}s are delivered through the mailbox too, so the timing wheel must be set beforehand.
+ */
+public final class StateMachineActor implements AutoCloseable {
+
+    private static final Object UPDATE = new Object();
+
+    private final StateMachine stateMachine;
+
+    private final Executor executor;
+
+    private final MpscMailbox mailbox;
+
+    private final int batchSize;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private volatile boolean closed;
+
+    private final Runnable drain = this::drain;
+
+    /**
+     * Constructs an actor for a state machine. The state machine is frozen if it has not been already.
+     * @param stateMachine the state machine to run
+     * @param executor the executor the mailbox is drained on
+     * @param mailboxCapacity the maximum number of queued events
+     * @param batchSize the maximum number of events handled by one drain task, before it yields the executor
+     * @throws IllegalStateException if the state machine is already run by another actor
+     */
+    public StateMachineActor(StateMachine stateMachine, Executor executor, int mailboxCapacity, int batchSize) {
+        if (executor == null) {
+            throw new NullPointerException("Executor cannot be null");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        stateMachine.freeze();
+        this.stateMachine = stateMachine;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        mailbox = new MpscMailbox(mailboxCapacity);
+        stateMachine.attachActor(this);
+    }
+
+    /**
+     * Gets the state machine run by this actor.
+     * @return the state machine
+     */
+    public StateMachine getStateMachine() {
+        return stateMachine;
+    }
+
+    /**
+     * Queues an event, to be fired at the state machine with {@link StateMachine#fire(Object)}.
+     * @param event the event
+     * @return true if the event was queued, false if the mailbox is full or the actor is closed
+     * @throws RejectedExecutionException if the executor rejects the drain task. The event stays queued, and is
+     *                                    handled once a later call manages to schedule the drain task.
+     */
+    public boolean tell(Object event) {
+        if (event == null) {
+            throw new NullPointerException("Events cannot be null");
+        }
+        return enqueue(event);
+    }
+
+    /**
+     * Queues a call to {@link StateMachine#update()}.
+     * @return true if the update was queued, false if the mailbox is full or the actor is closed
+     * @throws RejectedExecutionException if the executor rejects the drain task
+     */
+    public boolean requestUpdate() {
+        return enqueue(UPDATE);
+    }
+
+    /**
+     * Gets the number of events waiting in the mailbox.
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return mailbox.size();
+    }
+
+    /**
+     * Gets the maximum number of events the mailbox can hold.
+     * @return the mailbox capacity
+     */
+    public int getMailboxCapacity() {
+        return mailbox.capacity();
+    }
+
+    /**
+     * Stops this actor from accepting events and updates. Those already in the mailbox are still handled.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Checks whether this actor has been closed.
+     * @return true if the actor no longer accepts events
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Queues an expired timer of the state machine. The timer is dropped if the actor is closed.
+     * @return true if the timer was queued or dropped, false if the mailbox is full
+     */
+    boolean deliver(TimerExpired timer) {
+        return closed || enqueue(timer);
+    }
+
+    private boolean enqueue(Object message) {
+        if (closed || !mailbox.offer(message)) {
+            return false;
+        }
+        schedule();
+        return true;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drain);
+            } catch (RejectedExecutionException e) {
+                // no drain task is running, so let the next call try again rather than wedge the actor
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void drain() {
+        for (int i = 0; i < batchSize; i++) {
+            final Object message = mailbox.poll();
+            if (message == null) {
+                break;
+            }
+            try {
+                if (message == UPDATE) {
+                    stateMachine.updateExclusive();
+                } else if (message instanceof TimerExpired) {
+                    stateMachine.fireTimerExclusive((TimerExpired) message);
+                } else {
+                    stateMachine.fireExclusive(message);
+                }
+            } catch (Throwable t) {
+                // keep draining, rather than leave the actor stuck with a full mailbox
+                final Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+            }
+        }
+        scheduled.set(false);
+        // an event may have arrived after the last poll, but before the flag was cleared
+        if (mailbox.size() > 0) {
+            schedule();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Locale;
+
+/**
+ * Compiles a frozen {@link StateMachine} into a tree of method handles, one branch per state, with each state's
+ * callbacks and transitions' guards bound to it as constants.
+ *
+ * Each compiled state machine gets a class of its own, which holds the tree in a {@code static final} field. The JIT
+ * treats the tree as a constant, and folds it into the compiled code of that class: the loops over the compiled graph,
+ * and the virtual calls on whatever {@link State} and {@link Transition} subclass happens to be in a slot, become a
+ * chain of tests in which each guard and callback is called on a constant receiver, and can be inlined. States are
+ * found by a binary search on their ID, so definitions larger than {@link #MAX_STATE_COUNT} states are rejected, as
+ * their trees would be too deep to benefit.
+ *
+ * Note: the classes are never unloaded while this library is loaded, so each definition should be compiled once.
+ */
+public final class StateMachineCompiler {
+
+    /**
+     * The largest number of states a compiled state machine may have.
+     */
+    public static final int MAX_STATE_COUNT = 1024;
+
+    private static final MethodHandle WHILE_IN_STATE, ON_EXIT_STATE, ON_ENTER_STATE, ON_ACTIVATED, SHOULD_ACTIVATE,
+            TRACKED_SHOULD_ACTIVATE, LESS_THAN;
+
+    static {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        final MethodType voidType = MethodType.methodType(void.class);
+        try {
+            WHILE_IN_STATE = lookup.findVirtual(State.class, "whileInState", voidType);
+            ON_EXIT_STATE = lookup.findVirtual(State.class, "onExitState", voidType);
+            ON_ENTER_STATE = lookup.findVirtual(State.class, "onEnterState", voidType);
+            ON_ACTIVATED = lookup.findVirtual(Transition.class, "onActivated", voidType);
+            SHOULD_ACTIVATE = lookup.findVirtual(Transition.class, "shouldActivate",
+                    MethodType.methodType(boolean.class));
+            TRACKED_SHOULD_ACTIVATE = lookup.findVirtual(CompiledGraph.class, "shouldActivate",
+                    MethodType.methodType(boolean.class, int.class, MetricsProbe.class));
+            LESS_THAN = lookup.findStatic(StateMachineCompiler.class, "lessThan",
+                    MethodType.methodType(boolean.class, int.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private StateMachineCompiler() {
+
+    }
+
+    private static boolean lessThan(int stateId, int bound) {
+        return stateId < bound;
+    }
+
+    /**
+     * Compiles a state machine. The state machine is frozen if it has not been already.
+     *
+     * The compiled state machine behaves like the original in {@link StepMode#FIRST_MATCH} mode: each update calls
+     * {@link State#whileInState()} on the current state, and takes the first polled transition whose conditions are
+     * met, in priority order. Event-driven transitions are skipped.
+     * @param stateMachine the state machine
+     * @return the compiled state machine, starting in the entry state
+     * @throws IllegalArgumentException if the state machine has more than {@link #MAX_STATE_COUNT} states
+     */
+    public static CompiledStateMachine compile(StateMachine stateMachine) {
+        final CompiledGraph graph = stateMachine.getGraph();
+        final int stateCount = graph.states.length;
+        if (stateCount > MAX_STATE_COUNT) {
+            throw new IllegalArgumentException(String.format(Locale.getDefault(), "State machines with " +
+                    "more than %d states cannot be compiled", MAX_STATE_COUNT));
+        }
+        final MethodHandle[] updates = new MethodHandle[stateCount];
+        for (int id = 0; id < stateCount; id++) {
+            updates[id] = compileState(graph, id);
+        }
+        return new CompiledStateMachine(stateMachine, UpdateClassGenerator.define(search(updates, 0, stateCount)),
+                stateMachine.getEntryStateId());
+    }
+
+    /**
+     * Builds the update of one state, of type {@code ()int}: it calls whileInState(), then tests each transition's
+     * guard in turn, and returns the ID of the state it ends up in.
+     */
+    private static MethodHandle compileState(CompiledGraph graph, int stateId) {
+        final State state = graph.states[stateId];
+        MethodHandle update = MethodHandles.constant(int.class, stateId);
+        for (int i = graph.offsets[stateId + 1] - 1; i >= graph.offsets[stateId]; i--) {
+            final Transition transition = graph.guards[i];
+            final int target = graph.targets[i];
+            // foldArguments runs its combiner first, so the callbacks are added in reverse order
+            MethodHandle take = MethodHandles.constant(int.class, target);
+            take = MethodHandles.foldArguments(take, ON_ENTER_STATE.bindTo(graph.states[target]));
+            take = MethodHandles.foldArguments(take, ON_ACTIVATED.bindTo(transition));
+            take = MethodHandles.foldArguments(take, ON_EXIT_STATE.bindTo(state));
+            // guards that depend on signals go through the graph's cache
+            final MethodHandle test = graph.dependencies[i] == null
+                    ? SHOULD_ACTIVATE.bindTo(transition)
+                    : MethodHandles.insertArguments(TRACKED_SHOULD_ACTIVATE, 0, graph, i, MetricsProbe.NONE);
+            update = MethodHandles.guardWithTest(test, take, update);
+        }
+        return MethodHandles.foldArguments(update, WHILE_IN_STATE.bindTo(state));
+    }
+
+    /**
+     * Builds the dispatch over state IDs from {@code from} to {@code to}, of type {@code (int)int}.
+     */
+    private static MethodHandle search(MethodHandle[] updates, int from, int to) {
+        if (to - from == 1) {
+            return MethodHandles.dropArguments(updates[from], 0, int.class);
+        }
+        final int middle = (from + to) >>> 1;
+        return MethodHandles.guardWithTest(MethodHandles.insertArguments(LESS_THAN, 1, middle),
+                search(updates, from, middle), search(updates, middle, to));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what the {@link StateMachine}s and {@link StateMachinePool}s sharing one definition do: how often each state
+ * is entered and how long it is stayed in, how often each transition is taken and its guard is checked, and how long
+ * updates take. Durations are measured in nanoseconds, and read through {@link #snapshot()}.
+ *
+ * Metrics are enabled with {@link StateMachine#setMetrics(StateMachineMetrics)} or
+ * {@link StateMachinePool#setMetrics(StateMachineMetrics)}, and can be turned on and off at any time. While they are
+ * off, the state machine calls a probe that does nothing in their place. Counters are striped with {@link LongAdder}s,
+ * and recording into a histogram never allocates.
+ *
+ * Only polled transitions' guards, that is calls to {@link Transition#shouldActivate()}, are counted as guard
+ * evaluations, and the cached results of guards that depend on {@link Signal signals} are not. A change of state made
+ * without a transition, such as {@link StateMachine#setCurrentState(State)}, counts as an entry into the new state.
+ */
+public final class StateMachineMetrics {
+
+    private final StateMachine definition;
+
+    private final LongAdder[] entries, fires, guardEvaluations;
+
+    private final LatencyHistogram[] dwellTimes;
+
+    private final LatencyHistogram updateLatency = new LatencyHistogram();
+
+    /**
+     * Constructs metrics for a state machine's definition. The state machine is frozen if it has not been already.
+     * @param definition the state machine
+     */
+    public StateMachineMetrics(StateMachine definition) {
+        final CompiledGraph graph = definition.getGraph();
+        this.definition = definition;
+        entries = newAdders(graph.states.length);
+        dwellTimes = new LatencyHistogram[graph.states.length];
+        for (int i = 0; i < dwellTimes.length; i++) {
+            dwellTimes[i] = new LatencyHistogram();
+        }
+        fires = newAdders(graph.transitions.size());
+        guardEvaluations = newAdders(graph.transitions.size());
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        final LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Gets the state machine these metrics are for.
+     * @return the definition
+     */
+    public StateMachine getDefinition() {
+        return definition;
+    }
+
+    /**
+     * Copies the current values of every metric. Metrics recorded while the copy is made may or may not be included.
+     * @return the copy
+     */
+    public MetricsSnapshot snapshot() {
+        final long[] entryCounts = new long[entries.length];
+        final HistogramSnapshot[] dwellTimeSnapshots = new HistogramSnapshot[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            entryCounts[i] = entries[i].sum();
+            dwellTimeSnapshots[i] = dwellTimes[i].snapshot();
+        }
+        final long[] fireCounts = new long[fires.length];
+        final long[] guardEvaluationCounts = new long[fires.length];
+        for (int i = 0; i < fires.length; i++) {
+            fireCounts[i] = fires[i].sum();
+            guardEvaluationCounts[i] = guardEvaluations[i].sum();
+        }
+        return new MetricsSnapshot(definition, entryCounts, dwellTimeSnapshots, fireCounts,
+                guardEvaluationCounts, updateLatency.snapshot());
+    }
+
+    /**
+     * Creates a probe that records into these metrics, for the given number of instances.
+     */
+    MetricsProbe newProbe(int capacity) {
+        return new Recorder(capacity);
+    }
+
+    private final class Recorder extends MetricsProbe {
+
+        // when each instance entered its current state, or when recording started
+        private long[] enteredAt;
+
+        Recorder(int capacity) {
+            enteredAt = new long[capacity];
+            Arrays.fill(enteredAt, System.nanoTime());
+        }
+
+        @Override
+        long updateStarted() {
+            return System.nanoTime();
+        }
+
+        @Override
+        void updateFinished(long start) {
+            updateLatency.record(System.nanoTime() - start);
+        }
+
+        @Override
+        void guardEvaluated(int transitionId) {
+            guardEvaluations[transitionId].increment();
+        }
+
+        @Override
+        void stateChanged(int instance, int fromState, int toState, int transitionId) {
+            final long now = System.nanoTime();
+            dwellTimes[fromState].record(now - enteredAt[instance]);
+            enteredAt[instance] = now;
+            entries[toState].increment();
+            if (transitionId >= 0) {
+                fires[transitionId].increment();
+            }
+        }
+
+        @Override
+        void ensureCapacity(int capacity) {
+            final int oldCapacity = enteredAt.length;
+            if (capacity > oldCapacity) {
+                enteredAt = Arrays.copyOf(enteredAt, capacity);
+                Arrays.fill(enteredAt, oldCapacity, capacity, System.nanoTime());
+            }
+        }
+    }
+}
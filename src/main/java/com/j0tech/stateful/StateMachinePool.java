@@ -0,0 +1,209 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import com.j0tech.stateful.exceptions.NoEntryStateSetException;
+import com.j0tech.stateful.exceptions.StateNotManagedException;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * A population of lightweight instances that all share one {@link StateMachine} as their definition.
+ *
+ * The states and transitions are held once, by the definition. Each instance only costs an int slot holding the ID of
+ * its current state, and is addressed by its index in the pool. Callbacks are invoked through their context-taking
+ * variants, such as {@link State#whileInState(Object)} and {@link Transition#shouldActivate(Object)}, so they know
+ * which instance they are running for.
+ *
+ * Note: pools are not synchronized. Different instances may be updated from different threads at the same time, but
+ * any one instance must only be updated by one thread at a time.
+ */
+public final class StateMachinePool {
+
+    private final StateMachine definition;
+
+    private final int entryStateId;
+
+    int[] states;
+
+    private TransitionJournal journal = TransitionJournal.NONE;
+
+    private MetricsProbe probe = MetricsProbe.NONE;
+
+    /**
+     * Constructs a pool of instances, all starting in the definition's entry state. The definition is frozen if it
+     * has not been already.
+     *
+     * Note: like with {@link StateMachine#setEntryState(State)}, {@link State#onEnterState(Object)} will not be
+     * called on the entry state.
+     * @param definition the state machine shared by every instance
+     * @param capacity the number of instances
+     * @throws NoEntryStateSetException if the definition has no entry state
+     */
+    public StateMachinePool(StateMachine definition, int capacity) {
+        definition.freeze();
+        this.definition = definition;
+        entryStateId = definition.getEntryStateId();
+        states = new int[capacity];
+        Arrays.fill(states, entryStateId);
+    }
+
+    /**
+     * Gets the state machine shared by every instance in this pool.
+     * @return the definition
+     */
+    public StateMachine getDefinition() {
+        return definition;
+    }
+
+    /**
+     * Sets the journal that the instances' changes of state are recorded in, under their index.
+     * @param journal the journal, or {@link TransitionJournal#NONE} to stop recording
+     */
+    public void setJournal(TransitionJournal journal) {
+        if (journal == null) {
+            throw new NullPointerException("Journal cannot be null");
+        }
+        this.journal = journal;
+    }
+
+    /**
+     * Turns metrics on or off for the instances in this pool.
+     * @param metrics the metrics to record into, or null to stop recording
+     * @throws IllegalArgumentException if the metrics are for another state machine
+     */
+    public void setMetrics(StateMachineMetrics metrics) {
+        if (metrics != null && metrics.getDefinition() != definition) {
+            throw new IllegalArgumentException("Metrics belong to another state machine");
+        }
+        probe = metrics == null ? MetricsProbe.NONE : metrics.newProbe(states.length);
+    }
+
+    /**
+     * Gets the number of instances in this pool.
+     * @return the number of instances
+     */
+    public int getCapacity() {
+        return states.length;
+    }
+
+    /**
+     * Grows this pool so it holds at least the given number of instances. New instances start in the entry state.
+     * @param capacity the minimum number of instances
+     */
+    public void ensureCapacity(int capacity) {
+        final int oldCapacity = states.length;
+        if (capacity > oldCapacity) {
+            states = Arrays.copyOf(states, Math.max(capacity, oldCapacity + (oldCapacity >> 1)));
+            Arrays.fill(states, oldCapacity, states.length, entryStateId);
+            probe.ensureCapacity(states.length);
+        }
+    }
+
+    /**
+     * Gets the state an instance is currently in.
+     * @param instance index of the instance
+     * @return the instance's current state
+     */
+    public State getCurrentState(int instance) {
+        return definition.getState(states[instance]);
+    }
+
+    /**
+     * Forces an instance to switch to the specified state.
+     * @param instance index of the instance
+     * @param state the state to switch to
+     * @param context context object passed to the state callbacks
+     */
+    public void setCurrentState(int instance, State state, Object context) {
+        final int stateId = definition.getStateId(state);
+        if (stateId < 0) {
+            throw new StateNotManagedException(state);
+        }
+
+        final int previousStateId = states[instance];
+        definition.getState(previousStateId).onExitState(context);
+        states[instance] = stateId;
+        state.onEnterState(context);
+        journal.record(instance, previousStateId, stateId, -1);
+        probe.stateChanged(instance, previousStateId, stateId, -1);
+    }
+
+    /**
+     * Puts an instance back in the entry state, without calling any callbacks.
+     * @param instance index of the instance
+     */
+    public void reset(int instance) {
+        final int previousStateId = states[instance];
+        states[instance] = entryStateId;
+        journal.record(instance, previousStateId, entryStateId, -1);
+        probe.stateChanged(instance, previousStateId, entryStateId, -1);
+    }
+
+    /**
+     * Updates a single instance. The first transition out of the instance's current state whose conditions are met
+     * is taken.
+     * @param instance index of the instance
+     * @param context context object passed to the state and transition callbacks
+     */
+    public void update(int instance, Object context) {
+        states[instance] = definition.step(instance, states[instance], context, journal, probe);
+    }
+
+    /**
+     * Fires an event at a single instance. Only the transitions out of the instance's current state that react to the
+     * event's type are checked.
+     * @param instance index of the instance
+     * @param event the event
+     * @param context context object passed to the state and transition callbacks
+     * @return true if a transition was taken, false otherwise
+     */
+    public boolean fire(int instance, Object event, Object context) {
+        final int stateId = definition.dispatch(instance, states[instance], event, context, journal, probe);
+        if (stateId < 0) {
+            return false;
+        }
+        states[instance] = stateId;
+        return true;
+    }
+
+    /**
+     * Updates every instance in this pool, in index order.
+     * @param contexts supplies the context object for each instance index
+     */
+    public void updateAll(IntFunction<?> contexts) {
+        updateRange(0, states.length, contexts);
+    }
+
+    void updateRange(int from, int to, IntFunction<?> contexts) {
+        final int[] states = this.states;
+        final TransitionJournal journal = this.journal;
+        final MetricsProbe probe = this.probe;
+        for (int i = from; i < to; i++) {
+            states[i] = definition.step(i, states[i], contexts.apply(i), journal, probe);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import com.j0tech.stateful.exceptions.StateNotManagedException;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Runs a {@link StateMachine} whose states are arranged in a hierarchy with {@link Region}s: a composite state is
+ * active together with one state of each of its regions, and regions of the same state run in parallel. The states
+ * the state machine was given directly, that are not in any region, form the top level, and it starts in its entry
+ * state.
+ *
+ * Transitions are not duplicated onto child states. Instead, the transitions of an active state are looked up by
+ * walking from it up to the top level, through a table of ancestors computed once, and the innermost enabled
+ * transition is taken. Every active state that is not composite is walked from, so one update or event may take one
+ * transition per region, unless a transition exits the others' states first. A transition exits every active state
+ * below the lowest region that contains both its source and its target, and enters the target along with the states
+ * above it, whose other regions start in their initial states.
+ *
+ * The active configuration is held as one state ID per region; see {@link #getConfiguration()}.
+ *
+ * Note: statecharts are not synchronized.
+ */
+public final class Statechart {
+
+    private static final int ROOT_REGION = 0;
+
+    private final StateMachine stateMachine;
+
+    private final CompiledGraph graph;
+
+    private final IdentityRegistry<Region> regions = new IdentityRegistry<>();
+
+    /**
+     * ID of the region each state is in.
+     */
+    private final int[] regionOf;
+
+    /**
+     * For each state, the state itself followed by the composite states it is nested in, innermost first, at indices
+     * {@code ancestorOffsets[s]} to {@code ancestorOffsets[s + 1]} of {@code ancestors}.
+     */
+    private final int[] ancestorOffsets, ancestors;
+
+    /**
+     * For each state, its regions are numbered {@code childRegions[s]} to {@code childRegions[s + 1]}.
+     */
+    private final int[] childRegions;
+
+    private final int[] regionOwner, regionParent, regionDepth, regionInitial;
+
+    private final int[] configuration;
+
+    private final int[] visitedAt, leaves, path;
+
+    private int stepCount;
+
+    /**
+     * Constructs a statechart. The state machine is frozen if it has not been already.
+     * @param stateMachine the state machine, whose entry state must be at the top level
+     * @throws StateNotManagedException if a state in a region is not managed by the state machine
+     * @throws IllegalArgumentException if a region has no initial state, or a state is nested in itself
+     */
+    public Statechart(StateMachine stateMachine) {
+        this.stateMachine = stateMachine;
+        graph = stateMachine.getGraph();
+        final int stateCount = graph.states.length;
+
+        // number the regions, with the top level first, then in the order of the states they belong to
+        childRegions = new int[stateCount + 1];
+        childRegions[0] = ROOT_REGION + 1;
+        for (int id = 0; id < stateCount; id++) {
+            for (Region region : graph.states[id].regions) {
+                if (region.initialState == null) {
+                    throw new IllegalArgumentException(String.format(Locale.getDefault(), "Region %s has no " +
+                            "initial state", region.toString()));
+                }
+                regions.register(region);
+            }
+            childRegions[id + 1] = regions.size() + 1;
+        }
+        final int regionCount = regions.size() + 1;
+
+        regionOf = new int[stateCount];
+        for (int id = 0; id < stateCount; id++) {
+            final Region region = graph.states[id].parentRegion;
+            if (region == null) {
+                regionOf[id] = ROOT_REGION;
+            } else if (region.owner == null) {
+                throw new IllegalArgumentException(String.format(Locale.getDefault(), "Region %s does not belong " +
+                        "to a state", region.toString()));
+            } else if (!regions.contains(region)) {
+                throw new StateNotManagedException(region.owner, "State has child states, but is not managed by " +
+                        "the state machine");
+            } else {
+                regionOf[id] = regions.idOf(region) + 1;
+            }
+        }
+
+        regionOwner = new int[regionCount];
+        regionInitial = new int[regionCount];
+        regionOwner[ROOT_REGION] = -1;
+        regionInitial[ROOT_REGION] = stateMachine.getEntryStateId();
+        if (regionOf[regionInitial[ROOT_REGION]] != ROOT_REGION) {
+            throw new IllegalArgumentException("The entry state must not be in a region");
+        }
+        for (int r = 1; r < regionCount; r++) {
+            final Region region = regions.get(r - 1);
+            regionOwner[r] = stateMachine.getStateId(region.owner);
+            regionInitial[r] = stateMachine.getStateId(region.initialState);
+            for (int i = 0; i < region.states.size(); i++) {
+                if (stateMachine.getStateId(region.states.get(i)) < 0) {
+                    throw new StateNotManagedException(region.states.get(i), String.format(Locale.getDefault(),
+                            "State is in region %s, but not managed by the state machine", region.toString()));
+                }
+            }
+        }
+
+        // walk each state up to the top level, which also rejects states nested in themselves
+        ancestorOffsets = new int[stateCount + 1];
+        for (int id = 0; id < stateCount; id++) {
+            int depth = 1;
+            for (int r = regionOf[id]; r != ROOT_REGION; r = regionOf[regionOwner[r]]) {
+                if (++depth > stateCount) {
+                    throw new IllegalArgumentException(String.format(Locale.getDefault(), "State %s is nested in " +
+                            "itself", graph.states[id].toString()));
+                }
+            }
+            ancestorOffsets[id + 1] = ancestorOffsets[id] + depth;
+        }
+        ancestors = new int[ancestorOffsets[stateCount]];
+        for (int id = 0; id < stateCount; id++) {
+            int index = ancestorOffsets[id];
+            ancestors[index++] = id;
+            for (int r = regionOf[id]; r != ROOT_REGION; r = regionOf[regionOwner[r]]) {
+                ancestors[index++] = regionOwner[r];
+            }
+        }
+
+        regionParent = new int[regionCount];
+        regionDepth = new int[regionCount];
+        regionParent[ROOT_REGION] = -1;
+        for (int r = 1; r < regionCount; r++) {
+            regionParent[r] = regionOf[regionOwner[r]];
+            regionDepth[r] = ancestorOffsets[regionOwner[r] + 1] - ancestorOffsets[regionOwner[r]];
+        }
+
+        configuration = new int[regionCount];
+        Arrays.fill(configuration, -1);
+        visitedAt = new int[stateCount];
+        leaves = new int[stateCount];
+        path = new int[stateCount];
+    }
+
+    /**
+     * Updates the statechart. Every active state's {@link State#whileInState()} is called, outer states first, then
+     * the polled transitions are looked up from each active state that is not composite.
+     */
+    public void update() {
+        startIfNeeded();
+        final int leafCount = collectLeaves(ROOT_REGION, 0, true);
+        stepCount++;
+        for (int i = 0; i < leafCount; i++) {
+            final int leaf = leaves[i];
+            for (int a = ancestorOffsets[leaf], end = ancestorOffsets[leaf + 1]; a < end; a++) {
+                final int source = ancestors[a];
+                if (!claim(source)) {
+                    // exited or entered by an earlier transition, or already walked from another region
+                    break;
+                }
+                final int index = select(source);
+                if (index >= 0) {
+                    take(source, graph.guards[index], graph.targets[index]);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fires an event at the statechart. The transitions that react to the event's type are looked up from each
+     * active state that is not composite, as with {@link StateMachine#fire(Object)}.
+     * @param event the event
+     * @return true if a transition was taken, false otherwise
+     */
+    public boolean fire(Object event) {
+        if (event == null) {
+            throw new NullPointerException("Events cannot be null");
+        }
+        startIfNeeded();
+        final int leafCount = collectLeaves(ROOT_REGION, 0, false);
+        stepCount++;
+        boolean taken = false;
+        for (int i = 0; i < leafCount; i++) {
+            final int leaf = leaves[i];
+            for (int a = ancestorOffsets[leaf], end = ancestorOffsets[leaf + 1]; a < end; a++) {
+                final int source = ancestors[a];
+                if (!claim(source)) {
+                    break;
+                }
+                final Transition transition = graph.states[source].findEventTransition(event, null);
+                if (transition != null) {
+                    take(source, transition, stateMachine.getStateId(transition.endState));
+                    taken = true;
+                    break;
+                }
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * Checks if a state is active.
+     * @param state the state
+     * @return true if the state is active, false otherwise
+     */
+    public boolean isActive(State state) {
+        final int id = stateMachine.getStateId(state);
+        if (id < 0) {
+            throw new StateNotManagedException(state);
+        }
+        startIfNeeded();
+        return configuration[regionOf[id]] == id;
+    }
+
+    /**
+     * Gets the active state of a region.
+     * @param region the region
+     * @return the active state, or null if the region's state is not active
+     */
+    public State getActiveState(Region region) {
+        final int r = regions.idOf(region) + 1;
+        if (r == ROOT_REGION) {
+            throw new IllegalArgumentException(String.format(Locale.getDefault(), "Region %s does not belong to " +
+                    "this statechart", region.toString()));
+        }
+        startIfNeeded();
+        return configuration[r] < 0 ? null : graph.states[configuration[r]];
+    }
+
+    /**
+     * Gets the active state at the top level.
+     * @return the active state
+     */
+    public State getActiveState() {
+        startIfNeeded();
+        return graph.states[configuration[ROOT_REGION]];
+    }
+
+    /**
+     * Gets a copy of the active configuration: for each region, the ID of its active state, or -1 if the region's
+     * state is not active. The top level is region 0, followed by the regions in the order of the states they belong
+     * to, and states are numbered in the order they were added to the state machine.
+     * @return the configuration
+     */
+    public int[] getConfiguration() {
+        startIfNeeded();
+        return configuration.clone();
+    }
+
+    private void startIfNeeded() {
+        if (configuration[ROOT_REGION] < 0) {
+            stepCount++;
+            enterInitial(ROOT_REGION);
+        }
+    }
+
+    /**
+     * Marks a state as walked from in the current step.
+     * @return false if the state is no longer active, or was already walked from or entered in this step
+     */
+    private boolean claim(int state) {
+        if (configuration[regionOf[state]] != state || visitedAt[state] == stepCount) {
+            return false;
+        }
+        visitedAt[state] = stepCount;
+        return true;
+    }
+
+    private int select(int state) {
+        for (int i = graph.offsets[state], end = graph.offsets[state + 1]; i < end; i++) {
+            if (graph.shouldActivate(i, MetricsProbe.NONE)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Collects the active states that are not composite into {@code leaves}, in region order, optionally calling
+     * {@link State#whileInState()} on every active state along the way.
+     */
+    private int collectLeaves(int region, int count, boolean callWhileInState) {
+        final int state = configuration[region];
+        if (callWhileInState) {
+            graph.states[state].whileInState();
+        }
+        final int end = childRegions[state + 1];
+        if (childRegions[state] == end) {
+            leaves[count++] = state;
+        }
+        for (int r = childRegions[state]; r < end; r++) {
+            count = collectLeaves(r, count, callWhileInState);
+        }
+        return count;
+    }
+
+    private void take(int source, Transition transition, int target) {
+        // find the lowest region that contains both the source and the target
+        int domain = regionOf[source], targetRegion = regionOf[target];
+        while (regionDepth[domain] > regionDepth[targetRegion]) {
+            domain = regionParent[domain];
+        }
+        while (regionDepth[targetRegion] > regionDepth[domain]) {
+            targetRegion = regionParent[targetRegion];
+        }
+        while (domain != targetRegion) {
+            domain = regionParent[domain];
+            targetRegion = regionParent[targetRegion];
+        }
+
+        exit(domain);
+        transition.onActivated();
+        int length = 0;
+        for (int state = target; ; state = regionOwner[regionOf[state]]) {
+            path[length++] = state;
+            if (regionOf[state] == domain) {
+                break;
+            }
+        }
+        enterPath(length - 1);
+    }
+
+    private void exit(int region) {
+        final int state = configuration[region];
+        for (int r = childRegions[state + 1] - 1; r >= childRegions[state]; r--) {
+            exit(r);
+        }
+        graph.states[state].onExitState();
+        configuration[region] = -1;
+    }
+
+    /**
+     * Enters {@code path[index]}, then the rest of the path below it, down to the target at {@code path[0]}.
+     */
+    private void enterPath(int index) {
+        final int state = path[index];
+        enter(state);
+        for (int r = childRegions[state]; r < childRegions[state + 1]; r++) {
+            if (index > 0 && regionOf[path[index - 1]] == r) {
+                enterPath(index - 1);
+            } else {
+                enterInitial(r);
+            }
+        }
+    }
+
+    private void enterInitial(int region) {
+        final int state = regionInitial[region];
+        enter(state);
+        for (int r = childRegions[state]; r < childRegions[state + 1]; r++) {
+            enterInitial(r);
+        }
+    }
+
+    private void enter(int state) {
+        configuration[regionOf[state]] = state;
+        visitedAt[state] = stepCount;
+        graph.states[state].onEnterState();
+    }
+}
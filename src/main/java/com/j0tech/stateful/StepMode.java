@@ -0,0 +1,57 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+/**
+ * How many transitions a {@link StateMachine} takes per call, and how they are picked.
+ *
+ * When several polled transitions out of a state could be taken, they are checked in descending
+ * {@link Transition#getPriority() priority} order, and in the order they were added among equal priorities.
+ *
+ * @see StateMachine#setStepMode(StepMode)
+ */
+public enum StepMode {
+
+    /**
+     * Every transition out of the state the update started in is checked, and each one whose conditions are met is
+     * taken in turn, even though the state machine has already left that state. This is the original behavior, and is
+     * kept for compatibility; under {@link ConcurrencyMode#LOCK_FREE} and in a {@link StateMachinePool}, it behaves
+     * like {@link #FIRST_MATCH}.
+     */
+    ALL_MATCHING,
+
+    /**
+     * The first transition whose conditions are met is taken, and no others are checked. Each update takes at most one
+     * transition, and each fired event at most the one that accepts it.
+     */
+    FIRST_MATCH,
+
+    /**
+     * Like {@link #FIRST_MATCH}, but after a transition is taken, the polled transitions out of the new state are
+     * checked as well, until none can be taken, so that every call leaves the state machine in a stable state. The
+     * number of transitions per call is bounded by {@link StateMachine#setMaxMicrosteps(int)}.
+     */
+    RUN_TO_COMPLETION
+}
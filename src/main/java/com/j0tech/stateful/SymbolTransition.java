@@ -0,0 +1,95 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+/**
+ * A transition labelled with an input symbol, for state machines used as recognizers. It is taken when its symbol is
+ * fed to an {@link NfaRunner}, or fired at a {@link StateMachine} as an {@link Integer} event.
+ *
+ * Unlike other transitions, a symbol transition may start and end at the same state.
+ *
+ * A transition labelled with {@link #EPSILON} consumes no input: a recognizer follows it without waiting for a
+ * symbol, and {@link StateMachine#update()} takes it like any transition whose conditions are always met.
+ */
+public class SymbolTransition extends Transition {
+
+    /**
+     * The label of a transition that consumes no input.
+     */
+    public static final int EPSILON = -1;
+
+    final int symbol;
+
+    /**
+     * Constructs a transition labelled with a symbol.
+     * @param end end state for this transition
+     * @param symbol the symbol, which cannot be negative, or {@link #EPSILON}
+     */
+    public SymbolTransition(State end, int symbol) {
+        super(end, symbol == EPSILON ? new Class<?>[0] : new Class<?>[] {Integer.class});
+        if (symbol < EPSILON) {
+            throw new IllegalArgumentException("Symbols cannot be negative");
+        }
+        this.symbol = symbol;
+    }
+
+    /**
+     * Gets the symbol this transition is labelled with.
+     * @return the symbol, or {@link #EPSILON}
+     */
+    public int getSymbol() {
+        return symbol;
+    }
+
+    @Override
+    boolean allowsSelfLoop() {
+        return true;
+    }
+
+    /**
+     * Checks if this transition's callbacks have no side effects. By default, this returns true, unless this class has
+     * been subclassed.
+     * @return true if this transition's callbacks have no side effects, false otherwise
+     */
+    @Override
+    public boolean isSideEffectFree() {
+        return getClass() == SymbolTransition.class;
+    }
+
+    @Override
+    public void onActivated() {
+
+    }
+
+    @Override
+    public boolean shouldActivate() {
+        return true;
+    }
+
+    @Override
+    public boolean acceptsEvent(Object event, Object context) {
+        return (Integer) event == symbol && shouldActivate(context);
+    }
+}
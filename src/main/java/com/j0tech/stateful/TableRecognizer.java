@@ -0,0 +1,267 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import com.j0tech.stateful.exceptions.DfaStateLimitExceededException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a {@link StateMachine} as a recognizer over streams of bytes or characters, using a transition table that is
+ * built up front by determinizing its {@link SymbolTransition}s.
+ *
+ * Each symbol costs one load from a flat int array: there is no allocation and no virtual call per symbol, and byte
+ * buffers are read in place, whether they are heap, direct or memory-mapped. Symbols at or above the alphabet size
+ * lead to a dead state.
+ *
+ * Note: recognizers are not synchronized.
+ */
+public final class TableRecognizer {
+
+    /**
+     * The alphabet size used by {@link #TableRecognizer(StateMachine)}, enough for bytes and Latin-1 characters.
+     */
+    public static final int DEFAULT_ALPHABET_SIZE = 256;
+
+    /**
+     * The maximum number of DFA states used by {@link #TableRecognizer(StateMachine)}.
+     */
+    public static final int DEFAULT_MAX_STATES = 1 << 16;
+
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    private final int shift, alphabetMask;
+
+    /**
+     * The transition table. Entries hold the row offset of the next state, that is its ID shifted left by the
+     * alphabet size, so a step needs no multiplication.
+     */
+    private final int[] table;
+
+    private final boolean[] accepting;
+
+    private final int startRow, deadRow;
+
+    private int current;
+
+    private byte[] streamBuffer;
+
+    /**
+     * Constructs a recognizer for bytes and Latin-1 characters. The state machine is frozen if it has not been
+     * already.
+     * @param stateMachine the state machine to run
+     * @throws DfaStateLimitExceededException if the table would need more than {@link #DEFAULT_MAX_STATES} states
+     */
+    public TableRecognizer(StateMachine stateMachine) {
+        this(stateMachine, DEFAULT_ALPHABET_SIZE, DEFAULT_MAX_STATES);
+    }
+
+    /**
+     * Constructs a recognizer. The state machine is frozen if it has not been already.
+     * @param stateMachine the state machine to run
+     * @param alphabetSize the number of symbols in the table. Rounded up to a power of two, and at least 256.
+     * @param maxStates the maximum number of DFA states
+     * @throws DfaStateLimitExceededException if the table would need more than maxStates states
+     */
+    public TableRecognizer(StateMachine stateMachine, int alphabetSize, int maxStates) {
+        final Automaton automaton = stateMachine.getAutomaton();
+        final int alphabet = Math.max(DEFAULT_ALPHABET_SIZE, Integer.highestOneBit(Math.max(1, alphabetSize - 1)) << 1);
+        shift = Integer.numberOfTrailingZeros(alphabet);
+        alphabetMask = alphabet - 1;
+        if (maxStates < 1 || (long) maxStates << shift > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The table cannot hold that many states");
+        }
+
+        // subset construction, over every symbol in the alphabet
+        final Map<ActiveStateSet, Integer> ids = new HashMap<>();
+        final List<long[]> sets = new ArrayList<>();
+        final List<int[]> rows = new ArrayList<>();
+        final long[] target = new long[automaton.start.length];
+        sets.add(automaton.start.clone());
+        ids.put(new ActiveStateSet(sets.get(0)), 0);
+        // always have a dead state, so symbols outside the alphabet have somewhere to go
+        final long[] empty = new long[automaton.start.length];
+        if (ids.putIfAbsent(new ActiveStateSet(empty), 1) == null) {
+            sets.add(empty);
+        }
+        for (int id = 0; id < sets.size(); id++) {
+            final int[] row = new int[alphabet];
+            for (int symbol = 0; symbol < alphabet; symbol++) {
+                automaton.step(sets.get(id), symbol, target);
+                Integer targetId = ids.get(new ActiveStateSet(target));
+                if (targetId == null) {
+                    if (sets.size() == maxStates) {
+                        throw new DfaStateLimitExceededException(maxStates);
+                    }
+                    targetId = sets.size();
+                    final long[] set = target.clone();
+                    sets.add(set);
+                    ids.put(new ActiveStateSet(set), targetId);
+                }
+                row[symbol] = targetId << shift;
+            }
+            rows.add(row);
+        }
+
+        table = new int[rows.size() << shift];
+        accepting = new boolean[rows.size()];
+        for (int id = 0; id < rows.size(); id++) {
+            System.arraycopy(rows.get(id), 0, table, id << shift, alphabet);
+            accepting[id] = ActiveStateSet.intersects(sets.get(id), automaton.accepting);
+        }
+        startRow = 0;
+        deadRow = ids.get(new ActiveStateSet(empty)) << shift;
+        current = startRow;
+    }
+
+    /**
+     * Gets the number of DFA states in the transition table.
+     * @return the number of states
+     */
+    public int getStateCount() {
+        return accepting.length;
+    }
+
+    /**
+     * Goes back to the start state.
+     */
+    public void reset() {
+        current = startRow;
+    }
+
+    /**
+     * Feeds one symbol.
+     * @param symbol the symbol
+     */
+    public void step(int symbol) {
+        current = (symbol & ~alphabetMask) == 0 ? table[current + symbol] : deadRow;
+    }
+
+    /**
+     * Feeds the remaining bytes of a buffer, and moves its position to its limit. The bytes are read in place.
+     * @param buffer the buffer
+     */
+    public void feed(ByteBuffer buffer) {
+        final int[] table = this.table;
+        final int deadRow = this.deadRow;
+        int state = current;
+        final int position = buffer.position();
+        final int limit = buffer.limit();
+        if (buffer.hasArray()) {
+            final byte[] array = buffer.array();
+            final int offset = buffer.arrayOffset();
+            for (int i = position + offset, end = limit + offset; i < end && state != deadRow; i++) {
+                state = table[state + (array[i] & 0xFF)];
+            }
+        } else {
+            for (int i = position; i < limit && state != deadRow; i++) {
+                state = table[state + (buffer.get(i) & 0xFF)];
+            }
+        }
+        buffer.position(limit);
+        current = state;
+    }
+
+    /**
+     * Feeds a range of bytes from an array.
+     * @param bytes the bytes
+     * @param offset index of the first byte
+     * @param length the number of bytes
+     */
+    public void feed(byte[] bytes, int offset, int length) {
+        final int[] table = this.table;
+        final int deadRow = this.deadRow;
+        int state = current;
+        for (int i = offset, end = offset + length; i < end && state != deadRow; i++) {
+            state = table[state + (bytes[i] & 0xFF)];
+        }
+        current = state;
+    }
+
+    /**
+     * Feeds every character of a character sequence.
+     * @param chars the characters
+     */
+    public void feed(CharSequence chars) {
+        final int[] table = this.table;
+        final int alphabetMask = this.alphabetMask;
+        final int deadRow = this.deadRow;
+        int state = current;
+        for (int i = 0, length = chars.length(); i < length && state != deadRow; i++) {
+            final char c = chars.charAt(i);
+            state = (c & ~alphabetMask) == 0 ? table[state + c] : deadRow;
+        }
+        current = state;
+    }
+
+    /**
+     * Feeds every byte of a stream, until the end of the stream is reached, or until the recognizer is dead, in which
+     * case the rest of the stream is left unread. The stream is not closed.
+     * @param stream the stream
+     * @throws IOException if reading the stream fails
+     */
+    public void feed(InputStream stream) throws IOException {
+        if (streamBuffer == null) {
+            streamBuffer = new byte[STREAM_BUFFER_SIZE];
+        }
+        int read;
+        while (current != deadRow && (read = stream.read(streamBuffer)) >= 0) {
+            feed(streamBuffer, 0, read);
+        }
+    }
+
+    /**
+     * Checks if the input fed so far is accepted.
+     * @return true if accepted, false otherwise
+     */
+    public boolean isAccepting() {
+        return accepting[current >>> shift];
+    }
+
+    /**
+     * Checks if no further input can be accepted.
+     * @return true if the recognizer is in the dead state, false otherwise
+     */
+    public boolean isDead() {
+        return current == deadRow;
+    }
+
+    /**
+     * Resets the recognizer, feeds it a character sequence, and checks if it is accepted.
+     * @param chars the characters
+     * @return true if accepted, false otherwise
+     */
+    public boolean matches(CharSequence chars) {
+        reset();
+        feed(chars);
+        return isAccepting();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.time.Instant;
+
+/**
+ * A transition that is taken once the state machine has been in its start state for a set time, or once a deadline
+ * has passed. Its timer is armed on the {@link TimingWheel} set with {@link StateMachine#setTimingWheel(TimingWheel)}
+ * when the start state is entered, and cancelled when it is left, so nothing has to poll for the timeout.
+ *
+ * When the timer expires, {@link #shouldActivate()} is checked as usual, so it can be overridden to add further
+ * conditions. By default, it returns true.
+ *
+ * Note: timers are only armed for a {@link StateMachine}, not for the instances of a {@link StateMachinePool}.
+ */
+public abstract class TimedTransition extends Transition {
+
+    final long delayMillis, deadlineMillis;
+
+    final boolean hasDeadline;
+
+    /**
+     * Constructs a transition that is taken after the state machine has been in its start state for a while.
+     * @param end end state for this transition
+     * @param delayMillis how long to stay in the start state, in milliseconds
+     */
+    public TimedTransition(State end, long delayMillis) {
+        super(end, TimerExpired.class);
+        this.delayMillis = delayMillis;
+        deadlineMillis = 0;
+        hasDeadline = false;
+    }
+
+    /**
+     * Constructs a transition that is taken once a deadline has passed, if the state machine is in its start state.
+     * @param end end state for this transition
+     * @param deadline the deadline, on the clock the timing wheel is advanced with
+     */
+    public TimedTransition(State end, Instant deadline) {
+        super(end, TimerExpired.class);
+        delayMillis = 0;
+        deadlineMillis = deadline.toEpochMilli();
+        hasDeadline = true;
+    }
+
+    TimingWheel.Timeout arm(TimingWheel wheel, Runnable task) {
+        return hasDeadline ? wheel.scheduleAt(deadlineMillis, task) : wheel.schedule(delayMillis, task);
+    }
+
+    @Override
+    public boolean shouldActivate() {
+        return true;
+    }
+
+    @Override
+    public final boolean acceptsEvent(Object event, Object context) {
+        return ((TimerExpired) event).transition == this && shouldActivate(context);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+/**
+ * A hashed timing wheel. Scheduling and cancelling a timeout are O(1), and timeouts cost nothing while they are
+ * pending: they are only looked at when the wheel reaches their bucket.
+ *
+ * The wheel does not run on its own. Time is moved forward by calling {@link #advanceTo(long)}, for example from the
+ * same loop that updates state machines, or from a scheduled executor, and expired timeouts run on that thread.
+ * All methods are thread-safe.
+ */
+public final class TimingWheel {
+
+    private final long tickMillis;
+
+    private final Timeout[] buckets;
+
+    private final int mask;
+
+    private long currentTick;
+
+    private final long startMillis;
+
+    private int pendingCount;
+
+    /**
+     * Constructs a timing wheel.
+     * @param tickMillis the resolution of the wheel, in milliseconds. Timeouts expire on the first tick at or after
+     *                   their deadline.
+     * @param wheelSize the number of buckets. Rounded up to a power of two.
+     * @param startMillis the current time, in milliseconds, on the same clock later passed to {@link #advanceTo(long)}
+     */
+    public TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("Tick duration must be at least 1 ms");
+        }
+        if (wheelSize < 1 || wheelSize > 1 << 30) {
+            throw new IllegalArgumentException("Wheel size must be between 1 and 2^30");
+        }
+        this.tickMillis = tickMillis;
+        this.startMillis = startMillis;
+        buckets = new Timeout[wheelSize == 1 ? 1 : Integer.highestOneBit(wheelSize - 1) << 1];
+        mask = buckets.length - 1;
+    }
+
+    /**
+     * Gets the time the wheel has been advanced to, rounded down to a tick.
+     * @return the current time, in milliseconds
+     */
+    public synchronized long getCurrentTime() {
+        return startMillis + currentTick * tickMillis;
+    }
+
+    /**
+     * Gets the number of timeouts that have been scheduled, but have not expired or been cancelled.
+     * @return the number of pending timeouts
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Schedules a task to run once the wheel has been advanced past a delay from now.
+     * @param delayMillis the delay, in milliseconds. Delays of zero or less expire on the next tick.
+     * @param task the task to run
+     * @return a handle that can cancel the timeout
+     */
+    public synchronized Timeout schedule(long delayMillis, Runnable task) {
+        final long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        final Timeout timeout = new Timeout(currentTick + ticks, task);
+        link(timeout);
+        return timeout;
+    }
+
+    /**
+     * Schedules a task to run once the wheel has been advanced past a point in time.
+     * @param deadlineMillis the deadline, in milliseconds, on the clock passed to {@link #advanceTo(long)}
+     * @param task the task to run
+     * @return a handle that can cancel the timeout
+     */
+    public synchronized Timeout scheduleAt(long deadlineMillis, Runnable task) {
+        return schedule(deadlineMillis - getCurrentTime(), task);
+    }
+
+    /**
+     * Moves the wheel forward, and runs every task whose timeout has expired, in deadline order.
+     * @param nowMillis the current time, in milliseconds
+     * @return the number of tasks that were run
+     */
+    public int advanceTo(long nowMillis) {
+        final Timeout expired;
+        synchronized (this) {
+            final long targetTick = (nowMillis - startMillis) / tickMillis;
+            Timeout first = null, last = null;
+            while (currentTick < targetTick) {
+                currentTick++;
+                Timeout timeout = buckets[(int) currentTick & mask];
+                while (timeout != null) {
+                    final Timeout next = timeout.next;
+                    if (timeout.deadlineTick <= currentTick) {
+                        unlink(timeout);
+                        timeout.state = Timeout.EXPIRED;
+                        if (last == null) {
+                            first = timeout;
+                        } else {
+                            last.next = timeout;
+                        }
+                        last = timeout;
+                    }
+                    timeout = next;
+                }
+            }
+            expired = first;
+        }
+
+        // run the tasks outside the lock, so they can schedule and cancel timeouts of their own
+        int count = 0;
+        for (Timeout timeout = expired; timeout != null; ) {
+            final Timeout next = timeout.next;
+            timeout.next = null;
+            timeout.task.run();
+            count++;
+            timeout = next;
+        }
+        return count;
+    }
+
+    private void link(Timeout timeout) {
+        final int index = (int) timeout.deadlineTick & mask;
+        final Timeout head = buckets[index];
+        timeout.next = head;
+        if (head != null) {
+            head.previous = timeout;
+        }
+        buckets[index] = timeout;
+        pendingCount++;
+    }
+
+    private void unlink(Timeout timeout) {
+        final int index = (int) timeout.deadlineTick & mask;
+        if (timeout.previous == null) {
+            buckets[index] = timeout.next;
+        } else {
+            timeout.previous.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        pendingCount--;
+    }
+
+    /**
+     * A handle to a task scheduled on a {@link TimingWheel}.
+     */
+    public final class Timeout {
+
+        private static final int PENDING = 0, EXPIRED = 1, CANCELLED = 2;
+
+        private final long deadlineTick;
+
+        private final Runnable task;
+
+        private Timeout previous, next;
+
+        private int state;
+
+        private Timeout(long deadlineTick, Runnable task) {
+            this.deadlineTick = deadlineTick;
+            this.task = task;
+        }
+
+        /**
+         * Cancels the timeout, unless it has already expired.
+         * @return true if the timeout was cancelled, false if it had already expired or been cancelled
+         */
+        public boolean cancel() {
+            synchronized (TimingWheel.this) {
+                if (state != PENDING) {
+                    return false;
+                }
+                state = CANCELLED;
+                unlink(this);
+                return true;
+            }
+        }
+
+        /**
+         * Checks if the timeout is still waiting to expire.
+         * @return true if pending, false if it has expired or been cancelled
+         */
+        public boolean isPending() {
+            synchronized (TimingWheel.this) {
+                return state == PENDING;
+            }
+        }
+    }
+}
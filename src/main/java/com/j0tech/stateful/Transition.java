@@ -24,25 +24,77 @@ TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
 
 package com.j0tech.stateful;
 
+import com.j0tech.stateful.exceptions.StateMachineFrozenException;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletionStage;
+
 /**
  * Represents a transition from one {@link State} to another.
  */
 public abstract class Transition {
 
+    private static final Class<?>[] NO_EVENT_TYPES = new Class<?>[0];
+
     State startState, endState;
 
+    final Class<?>[] eventTypes;
+
+    Signal<?>[] dependencies;
+
     /**
      * Constructs a new Transition that points to the {@link State} specified by end.
      * @param end end state for this transition
      */
     public Transition(State end) {
         endState = end;
+        eventTypes = NO_EVENT_TYPES;
+    }
+
+    /**
+     * Constructs a new Transition that points to the {@link State} specified by end, and that is only checked when
+     * an event of one of the given types is fired with {@link StateMachine#fire(Object)}. Event-driven transitions are
+     * never checked by {@link StateMachine#update()}.
+     * @param end end state for this transition
+     * @param eventTypes the types of events this transition reacts to. Subtypes of these types, including the
+     *                   classes implementing an interface, also match.
+     */
+    public Transition(State end, Class<?>... eventTypes) {
+        endState = end;
+        // a type given twice would index this transition twice, and have it checked twice per event
+        final Class<?>[] distinct = new Class<?>[eventTypes.length];
+        int count = 0;
+        for (Class<?> eventType : eventTypes) {
+            if (eventType == null) {
+                throw new NullPointerException("Event types cannot be null");
+            }
+            if (indexOf(distinct, count, eventType) < 0) {
+                distinct[count++] = eventType;
+            }
+        }
+        this.eventTypes = count == 0 ? NO_EVENT_TYPES : Arrays.copyOf(distinct, count);
+    }
+
+    private static int indexOf(Class<?>[] types, int count, Class<?> type) {
+        for (int i = 0; i < count; i++) {
+            if (types[i] == type) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     void registerStartState(State start) {
         startState = start;
     }
 
+    /**
+     * Checks if this transition may start and end at the same state.
+     */
+    boolean allowsSelfLoop() {
+        return false;
+    }
+
     /**
      * Called when this transition is activated.
      */
@@ -53,4 +105,95 @@ public abstract class Transition {
      * @return true if conditions are met, false otherwise
      */
     public abstract boolean shouldActivate();
+
+    /**
+     * Called when this transition is activated for an instance in a {@link StateMachinePool}. By default, this calls
+     * {@link #onActivated()}.
+     * @param context the context object the instance is being updated with
+     */
+    public void onActivated(Object context) {
+        onActivated();
+    }
+
+    /**
+     * Checks if the conditions for an instance in a {@link StateMachinePool} to enter this transition are met. By
+     * default, this calls {@link #shouldActivate()}.
+     * @param context the context object the instance is being updated with
+     * @return true if conditions are met, false otherwise
+     */
+    public boolean shouldActivate(Object context) {
+        return shouldActivate();
+    }
+
+    /**
+     * Called when this transition is activated by an {@link AsyncStateMachine}, after the start state has been left.
+     * The state machine is transitioning until the returned stage completes. By default, this calls
+     * {@link #onActivated()}, and returns a completed stage.
+     * @return a stage that completes when activating this transition is done
+     */
+    public CompletionStage<Void> onActivatedAsync() {
+        onActivated();
+        return State.COMPLETED;
+    }
+
+    /**
+     * Checks if this transition should be taken in response to an event it reacts to. By default, this calls
+     * {@link #shouldActivate(Object)} with the context.
+     * @param event the event that was fired
+     * @param context the context object the instance is being updated with, or null when the event was fired at a
+     *                {@link StateMachine}
+     * @return true if conditions are met, false otherwise
+     */
+    public boolean acceptsEvent(Object event, Object context) {
+        return shouldActivate(context);
+    }
+
+    /**
+     * Declares the signals this transition's guard depends on. Once the state machine is frozen, the guard is only
+     * evaluated again when one of them has changed, and its last result is used otherwise. The guard must then depend
+     * on nothing but these signals, not even the context object it is given. Dependencies must be declared before the
+     * state machine is frozen, and only apply to polled transitions.
+     * @param signals the signals the guard reads
+     * @return this transition
+     * @throws StateMachineFrozenException if this transition belongs to a frozen state machine
+     * @see Signal
+     */
+    public Transition dependsOn(Signal<?>... signals) {
+        if (startState != null && startState.frozen) {
+            throw new StateMachineFrozenException(startState);
+        }
+        for (Signal<?> signal : signals) {
+            if (signal == null) {
+                throw new NullPointerException("Signals cannot be null");
+            }
+        }
+        dependencies = signals.clone();
+        return this;
+    }
+
+    /**
+     * Checks if this transition's callbacks have no side effects, so that a {@link GraphOptimizer} may merge or remove
+     * it. By default, this returns false.
+     * @return true if this transition's callbacks have no side effects, false otherwise
+     */
+    public boolean isSideEffectFree() {
+        return false;
+    }
+
+    /**
+     * Gets this transition's priority. When several transitions out of a state could be taken, the one with the
+     * highest priority wins, and ties go to the one added first. By default, this returns 0.
+     * @return the priority
+     */
+    public int getPriority() {
+        return 0;
+    }
+
+    /**
+     * Checks if this transition is only taken in response to events.
+     * @return true if this transition reacts to events, false if it is checked on every update
+     */
+    public boolean isEventDriven() {
+        return eventTypes.length != 0;
+    }
 }
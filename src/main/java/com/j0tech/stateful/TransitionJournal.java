@@ -0,0 +1,58 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+/**
+ * Records the transitions taken by a {@link StateMachine}, or by the instances of a {@link StateMachinePool}, for
+ * auditing or to rebuild their states after a crash.
+ *
+ * States are identified by their IDs, which are the order they were added to the state machine in, and transitions
+ * by their IDs in the frozen state machine, which number the transitions of each state in turn, in the order they
+ * were added. A state change that was not caused by a transition, such as {@link StateMachine#setCurrentState(State)},
+ * is recorded with the transition ID -1.
+ *
+ * @see FileTransitionJournal
+ */
+public interface TransitionJournal {
+
+    /**
+     * A journal that records nothing.
+     */
+    TransitionJournal NONE = new TransitionJournal() {
+        @Override
+        public void record(long instance, int fromState, int toState, int transitionId) {
+
+        }
+    };
+
+    /**
+     * Records a change of state. Called after the change has taken effect, on the thread that made it.
+     * @param instance ID of the instance that changed state
+     * @param fromState ID of the state it left
+     * @param toState ID of the state it entered
+     * @param transitionId ID of the transition it took, or -1 if none
+     */
+    void record(long instance, int fromState, int toState, int transitionId);
+}
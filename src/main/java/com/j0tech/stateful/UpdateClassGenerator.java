@@ -0,0 +1,214 @@
+/*
+Copyright (c) 2019 j0 tech
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+No person may sell an unmodified version of the Software as a standalone,
+or shall in any way monetize the Software without modification. Modified versions
+of the Software, or versions of the Software used in other applications are
+exempt from this.
+
+THIS SOFTWARE IS PROVIDED ON AN 'AS-IS' BASIS, AND NO WARRANTY, NEITHER EXPRESS NOR IMPLIED,
+IS PROVIDED WITH THE SOFTWARE. J0 TECH IS NOT RESPONSIBLE, NOR MAY BE HELD LIABLE, FOR ANY
+DAMAGE, LOSSES, ETC. CAUSED BY THE SOFTWARE. USAGE OF THE SOFTWARE IS AN IMPLICIT AGREEMENT
+TO THESE TERMS. FAILURE TO ABIDE BY THESE TERMS REPRESENTS A BREACH OF LICENSE.
+ */
+
+package com.j0tech.stateful;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Defines a class of its own for each compiled update, in this package, through
+ * {@link MethodHandles.Lookup#defineClass(byte[])}.
+ *
+ * The class holds the update's method handle tree in a {@code static final} field, which the JIT treats as a
+ * constant, and calls it from {@link IntUnaryOperator#applyAsInt(int)}. The tree is folded into the compiled code of
+ * that method, so every callback and guard bound in it is called on a constant receiver, and can be inlined. The
+ * same tree held in an instance field would be an opaque call instead.
+ *
+ * The class is written by hand, as it only has three short methods: {@code <clinit>} claims the tree, which is
+ * handed over through {@link #claim(String)}, a constructor, and {@code applyAsInt}.
+ */
+final class UpdateClassGenerator {
+
+    private static final String PACKAGE = UpdateClassGenerator.class.getPackageName();
+
+    private static final AtomicInteger CLASS_COUNT = new AtomicInteger();
+
+    private static final ConcurrentHashMap<String, MethodHandle> PENDING = new ConcurrentHashMap<>();
+
+    private UpdateClassGenerator() {
+
+    }
+
+    /**
+     * Defines a class that calls an update, and instantiates it. The class lives as long as this library's class
+     * loader does, so each definition should only be compiled once.
+     * @param update the update, of type {@code (int)int}
+     * @return the update, as an instance of the new class
+     */
+    static IntUnaryOperator define(MethodHandle update) {
+        final String className = PACKAGE + ".CompiledUpdate$" + CLASS_COUNT.incrementAndGet();
+        PENDING.put(className, update);
+        try {
+            final Class<?> updateClass = MethodHandles.lookup().defineClass(classFile(className));
+            // initializing the class runs its <clinit>, which claims the update
+            return (IntUnaryOperator) updateClass.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not define the class of a compiled update", e);
+        } finally {
+            PENDING.remove(className);
+        }
+    }
+
+    /**
+     * Called by the static initializer of a generated class, to get the update it calls.
+     */
+    static MethodHandle claim(String className) {
+        return PENDING.remove(className);
+    }
+
+    private static byte[] classFile(String className) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            // Java 10, which needs no stack map frames for methods without branches
+            out.writeShort(54);
+
+            // the constant pool, whose entries are numbered from 1
+            out.writeShort(32);
+            utf8(out, className.replace('.', '/'));             // 1
+            classRef(out, 1);                                    // 2: this class
+            utf8(out, "java/lang/Object");                       // 3
+            classRef(out, 3);                                    // 4: super class
+            utf8(out, "java/util/function/IntUnaryOperator");    // 5
+            classRef(out, 5);                                    // 6
+            utf8(out, "UPDATE");                                 // 7
+            utf8(out, "Ljava/lang/invoke/MethodHandle;");        // 8
+            nameAndType(out, 7, 8);                              // 9
+            memberRef(out, 9, 2, 9);                             // 10: Fieldref UPDATE
+            utf8(out, UpdateClassGenerator.class.getName().replace('.', '/')); // 11
+            classRef(out, 11);                                   // 12
+            utf8(out, "claim");                                  // 13
+            utf8(out, "(Ljava/lang/String;)Ljava/lang/invoke/MethodHandle;"); // 14
+            nameAndType(out, 13, 14);                            // 15
+            memberRef(out, 10, 12, 15);                          // 16: Methodref claim
+            out.writeByte(8);                                    // 17: String className
+            out.writeShort(18);
+            utf8(out, className);                                // 18
+            utf8(out, "<init>");                                 // 19
+            utf8(out, "()V");                                    // 20
+            nameAndType(out, 19, 20);                            // 21
+            memberRef(out, 10, 4, 21);                           // 22: Methodref Object.<init>
+            utf8(out, "java/lang/invoke/MethodHandle");          // 23
+            classRef(out, 23);                                   // 24
+            utf8(out, "invokeExact");                            // 25
+            utf8(out, "(I)I");                                   // 26
+            nameAndType(out, 25, 26);                            // 27
+            memberRef(out, 10, 24, 27);                          // 28: Methodref MethodHandle.invokeExact
+            utf8(out, "<clinit>");                               // 29
+            utf8(out, "applyAsInt");                             // 30
+            utf8(out, "Code");                                   // 31
+
+            // final class, implementing IntUnaryOperator
+            out.writeShort(0x0030);
+            out.writeShort(2);
+            out.writeShort(4);
+            out.writeShort(1);
+            out.writeShort(6);
+
+            // private static final MethodHandle UPDATE
+            out.writeShort(1);
+            out.writeShort(0x001a);
+            out.writeShort(7);
+            out.writeShort(8);
+            out.writeShort(0);
+
+            out.writeShort(3);
+            // static { UPDATE = UpdateClassGenerator.claim(className); }
+            method(out, 0x0008, 29, 20, 1, 0, new byte[] {
+                    0x12, 17,               // ldc className
+                    (byte) 0xb8, 0, 16,     // invokestatic claim
+                    (byte) 0xb3, 0, 10,     // putstatic UPDATE
+                    (byte) 0xb1             // return
+            });
+            // public constructor
+            method(out, 0x0001, 19, 20, 1, 1, new byte[] {
+                    0x2a,                   // aload_0
+                    (byte) 0xb7, 0, 22,     // invokespecial Object.<init>
+                    (byte) 0xb1             // return
+            });
+            // public int applyAsInt(int stateId) { return (int) UPDATE.invokeExact(stateId); }
+            method(out, 0x0001, 30, 26, 2, 2, new byte[] {
+                    (byte) 0xb2, 0, 10,     // getstatic UPDATE
+                    0x1b,                   // iload_1
+                    (byte) 0xb6, 0, 28,     // invokevirtual invokeExact
+                    (byte) 0xac             // ireturn
+            });
+
+            // no class attributes
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void utf8(DataOutputStream out, String value) throws IOException {
+        out.writeByte(1);
+        out.writeUTF(value);
+    }
+
+    private static void classRef(DataOutputStream out, int nameIndex) throws IOException {
+        out.writeByte(7);
+        out.writeShort(nameIndex);
+    }
+
+    private static void nameAndType(DataOutputStream out, int nameIndex, int descriptorIndex) throws IOException {
+        out.writeByte(12);
+        out.writeShort(nameIndex);
+        out.writeShort(descriptorIndex);
+    }
+
+    private static void memberRef(DataOutputStream out, int tag, int classIndex, int nameAndTypeIndex)
+            throws IOException {
+        out.writeByte(tag);
+        out.writeShort(classIndex);
+        out.writeShort(nameAndTypeIndex);
+    }
+
+    private static void method(DataOutputStream out, int access, int nameIndex, int descriptorIndex, int maxStack,
+            int maxLocals, byte[] code) throws IOException {
+        out.writeShort(access);
+        out.writeShort(nameIndex);
+        out.writeShort(descriptorIndex);
+        out.writeShort(1);
+        out.writeShort(31);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        // no exception table, no attributes
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+}
@@ -1,10 +1,43 @@
 package com.j0tech.stateful;
 
+import com.j0tech.stateful.exceptions.DefinitionMismatchException;
+import com.j0tech.stateful.exceptions.MicrostepLimitExceededException;
+import com.j0tech.stateful.exceptions.StateMachineFrozenException;
 import com.j0tech.stateful.exceptions.StateNotManagedException;
+import com.j0tech.stateful.exceptions.TransitionAlreadyManagedException;
+import com.j0tech.stateful.exceptions.TransitionPointsToItselfException;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
 
 public class TestCases {
 
@@ -120,4 +153,2223 @@ public class TestCases {
         }
         Assert.assertTrue(success);
     }
+
+    @Test
+    public void testFrozenStateMachineRejectsModification() {
+        State state1 = new State("state1") {
+            @Override
+            public void onEnterState() {
+
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        State state2 = new State("state2") {
+            @Override
+            public void onEnterState() {
+
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addState(state1);
+        stateMachine.freeze();
+        Assert.assertTrue(stateMachine.isFrozen());
+        boolean success = false;
+        try {
+            stateMachine.addState(state2);
+        } catch (StateMachineFrozenException e) {
+            success = true;
+        }
+        Assert.assertTrue(success);
+        success = false;
+        try {
+            state1.addTransition(new Transition(state2) {
+                @Override
+                public void onActivated() {
+
+                }
+
+                @Override
+                public boolean shouldActivate() {
+                    return false;
+                }
+            });
+        } catch (StateMachineFrozenException e) {
+            success = true;
+        }
+        Assert.assertTrue(success);
+    }
+
+    @Test
+    public void testIdentityRegistryHandsOutDenseIds() {
+        IdentityRegistry<Object> registry = new IdentityRegistry<>();
+        Object first = new Object();
+        Assert.assertEquals(-1, registry.idOf(first));
+        Assert.assertFalse(registry.contains(first));
+
+        // well past the initial capacity, so both the table and the items grow several times
+        Object[] items = new Object[100];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = new Object();
+            Assert.assertEquals(i, registry.register(items[i]));
+        }
+        Assert.assertEquals(-1, registry.register(items[42]));
+        Assert.assertEquals(100, registry.size());
+        for (int i = 0; i < items.length; i++) {
+            Assert.assertEquals(i, registry.idOf(items[i]));
+            Assert.assertSame(items[i], registry.get(i));
+        }
+
+        registry.truncate(10);
+        Assert.assertEquals(10, registry.size());
+        Assert.assertEquals(9, registry.idOf(items[9]));
+        Assert.assertFalse(registry.contains(items[10]));
+        Assert.assertEquals(10, registry.register(items[99]));
+    }
+
+    @Test
+    public void testFailedAddTransitionsLeavesStateUntouched() {
+        State firstState = recognizerState("first", false);
+        State secondState = recognizerState("second", false);
+        Assert.assertNull(firstState.getEventTransitions(String.class));
+        Transition kept = eventTransition(secondState, "keep");
+        firstState.addTransition(kept);
+        Assert.assertEquals(1, firstState.getEventTransitions(String.class).length);
+
+        Transition added = eventTransition(secondState, "add");
+        boolean success = false;
+        try {
+            firstState.addTransitions(added, kept);
+        } catch (TransitionAlreadyManagedException e) {
+            success = true;
+        }
+        Assert.assertTrue(success);
+        Assert.assertEquals(1, firstState.managedTransitions.size());
+        Assert.assertFalse(firstState.managedTransitions.contains(added));
+        Assert.assertEquals(1, firstState.getEventTransitions(String.class).length);
+
+        Transition looping = eventTransition(firstState, "loop");
+        success = false;
+        try {
+            firstState.addTransitions(added, looping);
+        } catch (TransitionPointsToItselfException e) {
+            success = true;
+        }
+        Assert.assertTrue(success);
+        Assert.assertEquals(1, firstState.managedTransitions.size());
+
+        // the rolled back transitions can be added again, and get the next dense IDs
+        firstState.addTransitions(added);
+        Assert.assertEquals(1, firstState.managedTransitions.idOf(added));
+        Assert.assertEquals(2, firstState.getEventTransitions(String.class).length);
+
+        success = false;
+        try {
+            firstState.addTransition(kept);
+        } catch (TransitionAlreadyManagedException e) {
+            success = true;
+        }
+        Assert.assertTrue(success);
+    }
+
+    @Test
+    public void testPoolInstancesShareDefinition() {
+        State idleState = new State("Idle") {
+            @Override
+            public void onEnterState() {
+
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        State activeState = new State("Active") {
+            @Override
+            public void onEnterState() {
+
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        // instances with an even index should activate, the others should stay idle
+        idleState.addTransition(new Transition(activeState) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return false;
+            }
+
+            @Override
+            public boolean shouldActivate(Object context) {
+                return (Integer) context % 2 == 0;
+            }
+        });
+        StateMachine definition = new StateMachine();
+        definition.addStates(idleState, activeState);
+        definition.setEntryState(idleState);
+
+        StateMachinePool pool = new StateMachinePool(definition, 4);
+        Assert.assertTrue(definition.isFrozen());
+        pool.updateAll(instance -> instance);
+        Assert.assertSame(activeState, pool.getCurrentState(0));
+        Assert.assertSame(idleState, pool.getCurrentState(1));
+        Assert.assertSame(activeState, pool.getCurrentState(2));
+        Assert.assertSame(idleState, pool.getCurrentState(3));
+        pool.reset(0);
+        Assert.assertSame(idleState, pool.getCurrentState(0));
+    }
+
+    private static StateMachinePool countingPool(AtomicIntegerArray updates, int failingInstance) {
+        State countingState = new State("Counting") {
+            @Override
+            public void onEnterState() {
+
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void whileInState(Object context) {
+                final int instance = (Integer) context;
+                if (instance == failingInstance) {
+                    throw new IllegalStateException("Instance " + instance + " failed");
+                }
+                updates.incrementAndGet(instance);
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(countingState);
+        stateMachine.setEntryState(countingState);
+        return new StateMachinePool(stateMachine, updates.length());
+    }
+
+    private static void assertUpdatedOnce(AtomicIntegerArray updates) {
+        for (int i = 0; i < updates.length(); i++) {
+            Assert.assertEquals(1, updates.get(i));
+        }
+    }
+
+    @Test
+    public void testBatchUpdaterCoversEveryInstanceOnce() {
+        ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            AtomicIntegerArray updates = new AtomicIntegerArray(10001);
+            BatchUpdateResult result = new BatchUpdater(forkJoinPool, 1000)
+                    .updateAll(countingPool(updates, -1), instance -> instance);
+            assertUpdatedOnce(updates);
+            Assert.assertEquals(10001, result.getInstanceCount());
+            Assert.assertEquals(11, result.getChunkCount());
+
+            updates = new AtomicIntegerArray(10001);
+            result = new BatchUpdater(executor, 1000).updateAll(countingPool(updates, -1), instance -> instance);
+            assertUpdatedOnce(updates);
+            Assert.assertEquals(10001, result.getInstanceCount());
+            Assert.assertEquals(11, result.getChunkCount());
+
+            boolean success = false;
+            try {
+                new BatchUpdater(null, 1000);
+            } catch (NullPointerException e) {
+                success = true;
+            }
+            Assert.assertTrue(success);
+        } finally {
+            forkJoinPool.shutdown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatchUpdaterSplitsAtChunkSize() {
+        ForkJoinPool forkJoinPool = new ForkJoinPool(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (Executor chunkExecutor : new Executor[] {forkJoinPool, executor}) {
+                AtomicIntegerArray updates = new AtomicIntegerArray(64);
+                BatchUpdateResult result = new BatchUpdater(chunkExecutor, 64)
+                        .updateAll(countingPool(updates, -1), instance -> instance);
+                assertUpdatedOnce(updates);
+                Assert.assertEquals(1, result.getChunkCount());
+
+                updates = new AtomicIntegerArray(65);
+                result = new BatchUpdater(chunkExecutor, 64).updateAll(countingPool(updates, -1), instance -> instance);
+                assertUpdatedOnce(updates);
+                Assert.assertEquals(2, result.getChunkCount());
+
+                updates = new AtomicIntegerArray(128);
+                result = new BatchUpdater(chunkExecutor, 64).updateAll(countingPool(updates, -1), instance -> instance);
+                assertUpdatedOnce(updates);
+                Assert.assertEquals(2, result.getChunkCount());
+            }
+        } finally {
+            forkJoinPool.shutdown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatchUpdaterPropagatesChunkFailures() {
+        ForkJoinPool forkJoinPool = new ForkJoinPool(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (Executor chunkExecutor : new Executor[] {forkJoinPool, executor}) {
+                AtomicIntegerArray updates = new AtomicIntegerArray(1000);
+                StateMachinePool pool = countingPool(updates, 777);
+                boolean success = false;
+                try {
+                    new BatchUpdater(chunkExecutor, 100).updateAll(pool, instance -> instance);
+                } catch (IllegalStateException e) {
+                    success = "Instance 777 failed".equals(e.getMessage());
+                }
+                Assert.assertTrue(success);
+                // the other chunks still ran to completion
+                Assert.assertEquals(1, updates.get(0));
+                Assert.assertEquals(1, updates.get(999));
+            }
+        } finally {
+            forkJoinPool.shutdown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testEventDrivenTransitions() {
+        State closedState = new State("Closed") {
+            @Override
+            public void onEnterState() {
+
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        State openedState = new State("Opened") {
+            @Override
+            public void onEnterState() {
+
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        closedState.addTransition(new Transition(openedState, String.class) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+
+            @Override
+            public boolean acceptsEvent(Object event, Object context) {
+                return event.equals("open");
+            }
+        });
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(closedState, openedState);
+        stateMachine.setEntryState(closedState);
+        stateMachine.freeze();
+
+        Assert.assertFalse(stateMachine.fire(42));
+        Assert.assertFalse(stateMachine.fire("close"));
+        Assert.assertTrue(stateMachine.fire("open"));
+        Assert.assertFalse(stateMachine.fire("open"));
+
+        // event-driven transitions are never polled
+        StateMachinePool pool = new StateMachinePool(stateMachine, 1);
+        pool.update(0, null);
+        Assert.assertSame(closedState, pool.getCurrentState(0));
+        Assert.assertTrue(pool.fire(0, "open", null));
+        Assert.assertSame(openedState, pool.getCurrentState(0));
+    }
+
+    @Test
+    public void testLockFreeTransitionsAreLinearizable() throws InterruptedException {
+        AtomicInteger transitionCount = new AtomicInteger();
+        State pingState = new State("Ping") {
+            @Override
+            public void onEnterState() {
+                transitionCount.incrementAndGet();
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        State pongState = new State("Pong") {
+            @Override
+            public void onEnterState() {
+                transitionCount.incrementAndGet();
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        pingState.addTransition(new Transition(pongState) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+        });
+        pongState.addTransition(new Transition(pingState) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+        });
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(pingState, pongState);
+        stateMachine.setEntryState(pingState);
+        stateMachine.setConcurrencyMode(ConcurrencyMode.LOCK_FREE);
+        stateMachine.freeze();
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    stateMachine.update();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // every transition that took effect entered exactly one state, so the count tells us where we ended up
+        Assert.assertTrue(transitionCount.get() > 0);
+        Assert.assertSame(transitionCount.get() % 2 == 0 ? pingState : pongState, stateMachine.getCurrentState());
+    }
+
+    private static void runAll(List<Runnable> tasks) {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+    private static StateMachine recordingStateMachine(List<Object> handled) {
+        State listeningState = new State("Listening") {
+            @Override
+            public void onEnterState() {
+
+            }
+
+            @Override
+            public void whileInState() {
+                handled.add("update");
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        State stoppedState = recognizerState("Stopped", false);
+        listeningState.addTransition(new Transition(stoppedState, Integer.class) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+
+            @Override
+            public boolean acceptsEvent(Object event, Object context) {
+                handled.add(event);
+                return false;
+            }
+        });
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(listeningState, stoppedState);
+        stateMachine.setEntryState(listeningState);
+        return stateMachine;
+    }
+
+    @Test
+    public void testActorRejectsMessagesWhenMailboxIsFull() {
+        List<Object> handled = new ArrayList<>();
+        List<Runnable> tasks = new ArrayList<>();
+        StateMachineActor actor = new StateMachineActor(recordingStateMachine(handled), tasks::add, 3, 2);
+
+        Assert.assertTrue(actor.tell(1));
+        Assert.assertTrue(actor.requestUpdate());
+        Assert.assertTrue(actor.tell(2));
+        Assert.assertFalse(actor.tell(3));
+        Assert.assertFalse(actor.requestUpdate());
+        Assert.assertEquals(3, actor.getQueueDepth());
+        Assert.assertEquals(3, actor.getMailboxCapacity());
+        // a single drain task is scheduled, however many messages are queued
+        Assert.assertEquals(1, tasks.size());
+
+        runAll(tasks);
+        Assert.assertEquals(0, actor.getQueueDepth());
+        Assert.assertEquals(3, handled.size());
+        Assert.assertEquals(1, handled.get(0));
+        Assert.assertEquals("update", handled.get(1));
+        Assert.assertEquals(2, handled.get(2));
+        Assert.assertTrue(actor.tell(3));
+    }
+
+    @Test
+    public void testActorKeepsEachProducersOrder() throws InterruptedException {
+        final int producerCount = 4;
+        final int eventCount = 5000;
+        List<Object> handled = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            StateMachineActor actor = new StateMachineActor(recordingStateMachine(handled), executor, 64, 16);
+            Thread[] producers = new Thread[producerCount];
+            for (int p = 0; p < producerCount; p++) {
+                final int producer = p;
+                producers[p] = new Thread(() -> {
+                    for (int i = 0; i < eventCount; i++) {
+                        while (!actor.tell(producer * eventCount + i)) {
+                            Thread.onSpinWait();
+                        }
+                        if (i % 100 == 99) {
+                            while (!actor.requestUpdate()) {
+                                Thread.onSpinWait();
+                            }
+                        }
+                    }
+                });
+                producers[p].start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+
+            final int expected = producerCount * eventCount + producerCount * (eventCount / 100);
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (handled.size() < expected && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            Assert.assertEquals(expected, handled.size());
+        } finally {
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+
+        int[] next = new int[producerCount];
+        int updates = 0;
+        for (Object message : handled) {
+            if ("update".equals(message)) {
+                updates++;
+                continue;
+            }
+            final int event = (Integer) message;
+            final int producer = event / eventCount;
+            Assert.assertEquals(next[producer]++, event % eventCount);
+        }
+        Assert.assertEquals(producerCount * (eventCount / 100), updates);
+        for (int p = 0; p < producerCount; p++) {
+            Assert.assertEquals(eventCount, next[p]);
+        }
+    }
+
+    @Test
+    public void testActorDrainsQueuedMessagesAfterClose() {
+        List<Object> handled = new ArrayList<>();
+        List<Runnable> tasks = new ArrayList<>();
+        StateMachineActor actor = new StateMachineActor(recordingStateMachine(handled), tasks::add, 16, 2);
+
+        Assert.assertTrue(actor.tell(1));
+        Assert.assertTrue(actor.tell(2));
+        Assert.assertTrue(actor.requestUpdate());
+        actor.close();
+        Assert.assertTrue(actor.isClosed());
+        Assert.assertFalse(actor.tell(3));
+        Assert.assertFalse(actor.requestUpdate());
+        Assert.assertEquals(3, actor.getQueueDepth());
+
+        // the batch size is 2, so the drain task has to reschedule itself to finish
+        runAll(tasks);
+        Assert.assertEquals(0, actor.getQueueDepth());
+        Assert.assertEquals(3, handled.size());
+        Assert.assertEquals(1, handled.get(0));
+        Assert.assertEquals(2, handled.get(1));
+        Assert.assertEquals("update", handled.get(2));
+    }
+
+    @Test
+    public void testActorRecoversFromRejectedDrainTask() {
+        List<Object> handled = new ArrayList<>();
+        List<Runnable> tasks = new ArrayList<>();
+        AtomicBoolean rejecting = new AtomicBoolean(true);
+        StateMachineActor actor = new StateMachineActor(recordingStateMachine(handled), task -> {
+            if (rejecting.get()) {
+                throw new RejectedExecutionException("Executor is shut down");
+            }
+            tasks.add(task);
+        }, 16, 16);
+
+        boolean success = false;
+        try {
+            actor.tell(1);
+        } catch (RejectedExecutionException e) {
+            success = true;
+        }
+        Assert.assertTrue(success);
+        Assert.assertEquals(1, actor.getQueueDepth());
+
+        // once the executor accepts tasks again, the next message schedules a drain of both
+        rejecting.set(false);
+        Assert.assertTrue(actor.tell(2));
+        Assert.assertEquals(1, tasks.size());
+        runAll(tasks);
+        Assert.assertEquals(2, handled.size());
+        Assert.assertEquals(1, handled.get(0));
+        Assert.assertEquals(2, handled.get(1));
+
+        success = false;
+        try {
+            new StateMachineActor(recordingStateMachine(handled), null, 16, 16);
+        } catch (NullPointerException e) {
+            success = true;
+        }
+        Assert.assertTrue(success);
+    }
+
+    @Test
+    public void testTimedTransitions() {
+        State closedState = new State("Closed") {
+            @Override
+            public void onEnterState() {
+
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        State openedState = new State("Opened") {
+            @Override
+            public void onEnterState() {
+
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        closedState.addTransition(new Transition(openedState, String.class) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+        });
+        // the door closes by itself 500 ms after it was opened
+        openedState.addTransition(new TimedTransition(closedState, 500) {
+            @Override
+            public void onActivated() {
+
+            }
+        });
+        TimingWheel wheel = new TimingWheel(10, 64, 0);
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(closedState, openedState);
+        stateMachine.setEntryState(closedState);
+        stateMachine.setTimingWheel(wheel);
+
+        Assert.assertTrue(stateMachine.fire("open"));
+        Assert.assertEquals(1, wheel.getPendingCount());
+        wheel.advanceTo(490);
+        Assert.assertSame(openedState, stateMachine.getCurrentState());
+        wheel.advanceTo(500);
+        Assert.assertSame(closedState, stateMachine.getCurrentState());
+        Assert.assertEquals(0, wheel.getPendingCount());
+
+        // leaving the state early cancels its timer
+        Assert.assertTrue(stateMachine.fire("open"));
+        stateMachine.setCurrentState(closedState);
+        Assert.assertEquals(0, wheel.getPendingCount());
+        Assert.assertEquals(0, wheel.advanceTo(2000));
+        Assert.assertSame(closedState, stateMachine.getCurrentState());
+    }
+
+    private static State recognizerState(String name, boolean accepting) {
+        return new State(name) {
+            @Override
+            public void onEnterState() {
+
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+
+            @Override
+            public boolean isAccepting() {
+                return accepting;
+            }
+
+            @Override
+            public boolean isSideEffectFree() {
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void testNfaRunnerTracksEveryActiveState() {
+        // recognizes (a|b)*abb
+        State state0 = recognizerState("0", false);
+        State state1 = recognizerState("1", false);
+        State state2 = recognizerState("2", false);
+        State state3 = recognizerState("3", true);
+        state0.addTransitions(new SymbolTransition(state0, 'a'), new SymbolTransition(state0, 'b'),
+                new SymbolTransition(state1, 'a'));
+        state1.addTransition(new SymbolTransition(state2, 'b'));
+        state2.addTransition(new SymbolTransition(state3, 'b'));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(state0, state1, state2, state3);
+        stateMachine.setEntryState(state0);
+
+        NfaRunner runner = new NfaRunner(stateMachine);
+        runner.steps('a', 'b', 'a');
+        Assert.assertEquals(2, runner.getActiveStates().size());
+        Assert.assertFalse(runner.isAccepting());
+        runner.steps('b', 'b');
+        Assert.assertTrue(runner.isAccepting());
+        runner.step('c');
+        Assert.assertTrue(runner.isDead());
+        runner.reset();
+        Assert.assertFalse(runner.isDead());
+    }
+
+    private static void stepBoth(LazyDfaRunner runner, NfaRunner reference, int symbol, int times) {
+        for (int i = 0; i < times; i++) {
+            runner.step(symbol);
+            reference.step(symbol);
+            Assert.assertEquals(reference.isAccepting(), runner.isAccepting());
+            Assert.assertEquals(reference.isDead(), runner.isDead());
+        }
+    }
+
+    @Test
+    public void testLazyDfaRunnerCountsHitsMissesAndEvictions() {
+        State state0 = recognizerState("0", false);
+        State state1 = recognizerState("1", false);
+        State state2 = recognizerState("2", false);
+        State state3 = recognizerState("3", true);
+        state0.addTransitions(new SymbolTransition(state1, 'y'), new SymbolTransition(state2, 'x'));
+        state1.addTransitions(new SymbolTransition(state0, 'y'), new SymbolTransition(state2, 'x'));
+        state2.addTransition(new SymbolTransition(state3, 'x'));
+        state3.addTransition(new SymbolTransition(state2, 'x'));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(state0, state1, state2, state3);
+        stateMachine.setEntryState(state0);
+        LazyDfaRunner runner = new LazyDfaRunner(stateMachine, 2);
+        NfaRunner reference = new NfaRunner(stateMachine);
+
+        // only the first step builds a DFA state, the second finds it cached without a cached transition to it
+        stepBoth(runner, reference, 'y', 25);
+        Assert.assertEquals(24, runner.getHitCount());
+        Assert.assertEquals(1, runner.getMissCount());
+        Assert.assertEquals(2, runner.getCachedStateCount());
+
+        // the cache paid for itself, so it is flushed rather than abandoned
+        stepBoth(runner, reference, 'x', 3);
+        Assert.assertEquals(25, runner.getHitCount());
+        Assert.assertEquals(3, runner.getMissCount());
+        Assert.assertEquals(2, runner.getEvictionCount());
+        Assert.assertEquals(0, runner.getFallbackCount());
+
+        // filling up again right away falls back to the NFA
+        stepBoth(runner, reference, 'y', 1);
+        Assert.assertEquals(4, runner.getEvictionCount());
+        Assert.assertEquals(1, runner.getFallbackCount());
+        Assert.assertTrue(runner.isUsingNfaFallback());
+        runner.reset();
+        reference.reset();
+        Assert.assertFalse(runner.isUsingNfaFallback());
+        stepBoth(runner, reference, 'x', 4);
+    }
+
+    @Test
+    public void testLazyDfaRunnerHitsCachedStatesOnLargeSymbols() {
+        State evenState = recognizerState("even", true);
+        State oddState = recognizerState("odd", false);
+        evenState.addTransition(new SymbolTransition(oddState, 1000));
+        oddState.addTransition(new SymbolTransition(evenState, 1000));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(evenState, oddState);
+        stateMachine.setEntryState(evenState);
+        LazyDfaRunner runner = new LazyDfaRunner(stateMachine, 16);
+        NfaRunner reference = new NfaRunner(stateMachine);
+
+        stepBoth(runner, reference, 1000, 50);
+        Assert.assertEquals(49, runner.getHitCount());
+        Assert.assertEquals(1, runner.getMissCount());
+        Assert.assertEquals(0, runner.getEvictionCount());
+    }
+
+    @Test
+    public void testTableRecognizerFeedsWholeBuffers() {
+        // recognizes any input ending in "abb"
+        State state0 = recognizerState("0", false);
+        State state1 = recognizerState("1", false);
+        State state2 = recognizerState("2", false);
+        State state3 = recognizerState("3", true);
+        for (int symbol = 0; symbol < 256; symbol++) {
+            state0.addTransition(new SymbolTransition(state0, symbol));
+        }
+        state0.addTransition(new SymbolTransition(state1, 'a'));
+        state1.addTransition(new SymbolTransition(state2, 'b'));
+        state2.addTransition(new SymbolTransition(state3, 'b'));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(state0, state1, state2, state3);
+        stateMachine.setEntryState(state0);
+
+        TableRecognizer recognizer = new TableRecognizer(stateMachine);
+        Assert.assertTrue(recognizer.matches("xyzabb"));
+        Assert.assertFalse(recognizer.matches("xyzab"));
+        // characters outside the alphabet can never be accepted
+        Assert.assertFalse(recognizer.matches("abb\u0100"));
+        Assert.assertTrue(recognizer.isDead());
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+        buffer.put("--abb".getBytes(StandardCharsets.US_ASCII)).flip();
+        recognizer.reset();
+        recognizer.feed(buffer);
+        Assert.assertTrue(recognizer.isAccepting());
+        Assert.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testTableRecognizerStopsReadingStreamsOnceDead() throws IOException {
+        State startState = recognizerState("start", false);
+        State afterA = recognizerState("afterA", true);
+        startState.addTransition(new SymbolTransition(afterA, 'a'));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(startState, afterA);
+        stateMachine.setEntryState(startState);
+        TableRecognizer recognizer = new TableRecognizer(stateMachine);
+
+        // an endless stream, which would never be read to the end
+        AtomicInteger reads = new AtomicInteger();
+        InputStream stream = new InputStream() {
+            @Override
+            public int read() {
+                reads.incrementAndGet();
+                return 'x';
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                reads.incrementAndGet();
+                Arrays.fill(buffer, offset, offset + length, (byte) 'x');
+                return length;
+            }
+        };
+        recognizer.feed(stream);
+        Assert.assertTrue(recognizer.isDead());
+        Assert.assertEquals(1, reads.get());
+
+        recognizer.feed(stream);
+        Assert.assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void testGraphOptimizerMergesAndPrunes() {
+        // "a" and "b" both lead to equivalent accepting states, and "c" leads to a state that can never accept
+        State startState = recognizerState("start", false);
+        State afterA = recognizerState("afterA", true);
+        State afterB = recognizerState("afterB", true);
+        State afterC = recognizerState("afterC", false);
+        State unreachable = recognizerState("unreachable", true);
+        startState.addTransitions(new SymbolTransition(afterA, 'a'), new SymbolTransition(afterB, 'b'),
+                new SymbolTransition(afterC, 'c'));
+        afterA.addTransition(new SymbolTransition(startState, 'x'));
+        afterB.addTransition(new SymbolTransition(startState, 'x'));
+        afterC.addTransition(new SymbolTransition(afterC, 'c'));
+        unreachable.addTransition(new SymbolTransition(startState, 'x'));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(startState, afterA, afterB, afterC, unreachable);
+        stateMachine.setEntryState(startState);
+
+        OptimizationResult result = GraphOptimizer.optimize(stateMachine);
+        Assert.assertEquals(1, result.getUnreachableStateCount());
+        Assert.assertEquals(1, result.getDeadStateCount());
+        Assert.assertEquals(1, result.getMergedStateCount());
+        Assert.assertEquals(4, result.getRemovedTransitionCount());
+
+        TableRecognizer recognizer = new TableRecognizer(stateMachine);
+        Assert.assertTrue(recognizer.matches("axb"));
+        Assert.assertFalse(recognizer.matches("ac"));
+        Assert.assertFalse(recognizer.matches("c"));
+    }
+
+    private static Transition prioritizedTransition(State end, int priority) {
+        return new Transition(end) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return false;
+            }
+
+            @Override
+            public int getPriority() {
+                return priority;
+            }
+        };
+    }
+
+    private static StateMachine labelledStateMachine(int symbol, long delayMillis) {
+        State firstState = recognizerState("first", false);
+        State secondState = recognizerState("second", false);
+        State thirdState = recognizerState("third", false);
+        firstState.addTransition(prioritizedTransition(secondState, 0));
+        firstState.addTransition(eventTransition(thirdState, "skip"));
+        firstState.addTransition(prioritizedTransition(thirdState, 5));
+        firstState.addTransition(new SymbolTransition(secondState, symbol));
+        firstState.addTransition(prioritizedTransition(thirdState, 0));
+        secondState.addTransition(new TimedTransition(firstState, delayMillis) {
+            @Override
+            public void onActivated() {
+
+            }
+        });
+        thirdState.addTransition(prioritizedTransition(firstState, -1));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(firstState, secondState, thirdState);
+        stateMachine.setEntryState(firstState);
+        return stateMachine;
+    }
+
+    @Test
+    public void testCompiledGraphLayout() {
+        StateMachine stateMachine = labelledStateMachine('x', 100);
+        stateMachine.freeze();
+        CompiledGraph graph = stateMachine.getGraph();
+        State firstState = stateMachine.getState(0);
+
+        // only polled transitions are laid out, and the timed one out of the second state is event-driven
+        Assert.assertArrayEquals(new int[] {0, 3, 3, 4}, graph.offsets);
+        Assert.assertArrayEquals(new int[] {2, 1, 2, 0}, graph.targets);
+        Assert.assertEquals(5, graph.guards[0].getPriority());
+        Assert.assertSame(firstState.managedTransitions.get(2), graph.guards[0]);
+        Assert.assertSame(firstState.managedTransitions.get(0), graph.guards[1]);
+        Assert.assertSame(firstState.managedTransitions.get(4), graph.guards[2]);
+        Assert.assertEquals(7, graph.transitions.size());
+        for (int i = 0; i < graph.guards.length; i++) {
+            Assert.assertSame(graph.guards[i], graph.transitions.get(graph.transitionIds[i]));
+        }
+
+        Assert.assertEquals(stateMachine.getDefinitionFingerprint(),
+                labelledStateMachine('x', 100).getDefinitionFingerprint());
+        Assert.assertNotEquals(stateMachine.getDefinitionFingerprint(),
+                labelledStateMachine('y', 100).getDefinitionFingerprint());
+        Assert.assertNotEquals(stateMachine.getDefinitionFingerprint(),
+                labelledStateMachine('x', 200).getDefinitionFingerprint());
+    }
+
+    @Test
+    public void testRunToCompletionTakesHighestPriorityChain() {
+        State startState = recognizerState("start", false);
+        State lowState = recognizerState("low", false);
+        State highState = recognizerState("high", false);
+        State settledState = recognizerState("settled", false);
+        startState.addTransition(new Transition(lowState) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+        });
+        startState.addTransition(new Transition(highState) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+
+            @Override
+            public int getPriority() {
+                return 1;
+            }
+        });
+        highState.addTransition(new Transition(settledState) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+        });
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(startState, lowState, highState, settledState);
+        stateMachine.setEntryState(startState);
+        stateMachine.setStepMode(StepMode.RUN_TO_COMPLETION);
+
+        stateMachine.update();
+        Assert.assertSame(settledState, stateMachine.getCurrentState());
+
+        stateMachine.freeze();
+        stateMachine.setCurrentState(startState);
+        stateMachine.update();
+        Assert.assertSame(settledState, stateMachine.getCurrentState());
+
+        StateMachinePool pool = new StateMachinePool(stateMachine, 1);
+        pool.update(0, null);
+        Assert.assertSame(settledState, pool.getCurrentState(0));
+
+        // transitions that are always enabled and lead back to each other never settle
+        State pingState = recognizerState("ping", false);
+        State pongState = recognizerState("pong", false);
+        pingState.addTransition(new Transition(pongState) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+        });
+        pongState.addTransition(new Transition(pingState) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+        });
+        StateMachine cyclic = new StateMachine();
+        cyclic.addStates(pingState, pongState);
+        cyclic.setEntryState(pingState);
+        cyclic.setStepMode(StepMode.RUN_TO_COMPLETION);
+        cyclic.setMaxMicrosteps(10);
+        boolean success = false;
+        try {
+            cyclic.update();
+        } catch (MicrostepLimitExceededException e) {
+            success = true;
+        }
+        Assert.assertTrue(success);
+    }
+
+    private static Transition eventTransition(State end, String event) {
+        return new Transition(end, String.class) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+
+            @Override
+            public boolean acceptsEvent(Object firedEvent, Object context) {
+                return firedEvent.equals(event);
+            }
+        };
+    }
+
+    @Test
+    public void testStatechartRunsOrthogonalRegions() {
+        State idleState = recognizerState("idle", false);
+        State activeState = recognizerState("active", false);
+        State offState = recognizerState("off", false);
+        State onState = recognizerState("on", false);
+        State stoppedState = recognizerState("stopped", false);
+        State spinningState = recognizerState("spinning", false);
+        Region light = new Region("light");
+        light.addStates(offState, onState);
+        light.setInitialState(offState);
+        Region fan = new Region("fan");
+        fan.addStates(stoppedState, spinningState);
+        fan.setInitialState(stoppedState);
+        activeState.addRegion(light);
+        activeState.addRegion(fan);
+
+        idleState.addTransition(eventTransition(activeState, "start"));
+        // inherited by every state nested in the active state
+        activeState.addTransition(eventTransition(idleState, "stop"));
+        offState.addTransition(new Transition(onState) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+        });
+        stoppedState.addTransition(eventTransition(spinningState, "spin"));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(idleState, activeState, offState, onState, stoppedState, spinningState);
+        stateMachine.setEntryState(idleState);
+
+        Statechart statechart = new Statechart(stateMachine);
+        Assert.assertSame(idleState, statechart.getActiveState());
+        Assert.assertNull(statechart.getActiveState(light));
+        Assert.assertTrue(statechart.fire("start"));
+        Assert.assertSame(activeState, statechart.getActiveState());
+        Assert.assertSame(offState, statechart.getActiveState(light));
+        Assert.assertSame(stoppedState, statechart.getActiveState(fan));
+
+        statechart.update();
+        Assert.assertSame(onState, statechart.getActiveState(light));
+        Assert.assertTrue(statechart.fire("spin"));
+        Assert.assertSame(spinningState, statechart.getActiveState(fan));
+        Assert.assertArrayEquals(new int[] {1, 3, 5}, statechart.getConfiguration());
+
+        Assert.assertTrue(statechart.fire("stop"));
+        Assert.assertSame(idleState, statechart.getActiveState());
+        Assert.assertFalse(statechart.isActive(onState));
+        Assert.assertArrayEquals(new int[] {0, -1, -1}, statechart.getConfiguration());
+    }
+
+    @Test
+    public void testPoolSnapshotRoundTrip() throws IOException {
+        State firstState = recognizerState("first", false);
+        State secondState = recognizerState("second", false);
+        firstState.addTransition(new SymbolTransition(secondState, 'x'));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(firstState, secondState);
+        stateMachine.setEntryState(firstState);
+        StateMachinePool pool = new StateMachinePool(stateMachine, 3);
+        pool.fire(1, (int) 'x', null);
+
+        Path file = Files.createTempFile("stateful", ".snapshot");
+        try {
+            PoolSnapshot.write(pool, file);
+            StateMachinePool restored = new StateMachinePool(stateMachine, 1);
+            Assert.assertEquals(3, PoolSnapshot.read(file, restored));
+            Assert.assertSame(firstState, restored.getCurrentState(0));
+            Assert.assertSame(secondState, restored.getCurrentState(1));
+            Assert.assertSame(firstState, restored.getCurrentState(2));
+
+            // a definition with a different graph is rejected
+            State otherState = recognizerState("other", false);
+            StateMachine other = new StateMachine();
+            other.addStates(otherState);
+            other.setEntryState(otherState);
+            boolean success = false;
+            try {
+                PoolSnapshot.read(file, new StateMachinePool(other, 1));
+            } catch (DefinitionMismatchException e) {
+                success = true;
+            }
+            Assert.assertTrue(success);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testJournalReplayRebuildsPool() throws IOException, InterruptedException {
+        State firstState = recognizerState("first", false);
+        State secondState = recognizerState("second", false);
+        firstState.addTransition(new SymbolTransition(secondState, 'x'));
+        secondState.addTransition(new SymbolTransition(firstState, 'y'));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(firstState, secondState);
+        stateMachine.setEntryState(firstState);
+        StateMachinePool pool = new StateMachinePool(stateMachine, 4);
+
+        Path directory = Files.createTempDirectory("stateful");
+        try {
+            try (FileTransitionJournal journal = new FileTransitionJournal(stateMachine, directory)) {
+                pool.setJournal(journal);
+                pool.fire(1, (int) 'x', null);
+                pool.fire(2, (int) 'x', null);
+                pool.fire(2, (int) 'y', null);
+                pool.setCurrentState(3, secondState, null);
+                journal.awaitDurable();
+            }
+
+            StateMachinePool restored = new StateMachinePool(stateMachine, 1);
+            Assert.assertEquals(4, FileTransitionJournal.replay(directory, restored));
+            Assert.assertEquals(4, restored.getCapacity());
+            for (int i = 0; i < 4; i++) {
+                Assert.assertSame(pool.getCurrentState(i), restored.getCurrentState(i));
+            }
+        } finally {
+            try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory)) {
+                for (Path segment : segments) {
+                    Files.delete(segment);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testMetricsCountEntriesAndGuards() {
+        AtomicBoolean ready = new AtomicBoolean(false);
+        State waitingState = recognizerState("waiting", false);
+        State doneState = recognizerState("done", false);
+        Transition finishing = new Transition(doneState) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return ready.get();
+            }
+        };
+        waitingState.addTransition(finishing);
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(waitingState, doneState);
+        stateMachine.setEntryState(waitingState);
+
+        StateMachineMetrics metrics = new StateMachineMetrics(stateMachine);
+        stateMachine.setMetrics(metrics);
+        stateMachine.update();
+        stateMachine.update();
+        ready.set(true);
+        stateMachine.update();
+
+        MetricsSnapshot snapshot = metrics.snapshot();
+        Assert.assertEquals(3, snapshot.getGuardEvaluationCount(finishing));
+        Assert.assertEquals(1, snapshot.getFireCount(finishing));
+        Assert.assertEquals(1, snapshot.getEntryCount(doneState));
+        Assert.assertEquals(0, snapshot.getEntryCount(waitingState));
+        Assert.assertEquals(1, snapshot.getDwellTime(waitingState).getCount());
+        Assert.assertEquals(3, snapshot.getUpdateLatency().getCount());
+        boolean success = false;
+        try {
+            snapshot.getEntryCount(recognizerState("other", false));
+        } catch (StateNotManagedException e) {
+            success = true;
+        }
+        Assert.assertTrue(success);
+
+        // turning metrics off stops recording
+        stateMachine.setMetrics(null);
+        stateMachine.update();
+        Assert.assertEquals(3, metrics.snapshot().getUpdateLatency().getCount());
+    }
+
+    @Test
+    public void testCompiledStateMachineMatchesDefinition() {
+        AtomicInteger entries = new AtomicInteger();
+        State redState = new State("Red") {
+            @Override
+            public void onEnterState() {
+                entries.incrementAndGet();
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        State greenState = recognizerState("Green", false);
+        AtomicBoolean go = new AtomicBoolean(false);
+        redState.addTransition(new Transition(greenState) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return go.get();
+            }
+        });
+        greenState.addTransition(new Transition(redState) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return !go.get();
+            }
+        });
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(redState, greenState);
+        stateMachine.setEntryState(redState);
+
+        CompiledStateMachine compiled = StateMachineCompiler.compile(stateMachine);
+        compiled.update();
+        Assert.assertSame(redState, compiled.getCurrentState());
+        go.set(true);
+        compiled.update();
+        Assert.assertSame(greenState, compiled.getCurrentState());
+        go.set(false);
+        Assert.assertEquals(0, compiled.step(1));
+        Assert.assertEquals(1, entries.get());
+    }
+
+    @Test
+    public void testCompiledUpdatesGetClassesOfTheirOwn() {
+        IntUnaryOperator identity = UpdateClassGenerator.define(MethodHandles.identity(int.class));
+        IntUnaryOperator constant = UpdateClassGenerator.define(
+                MethodHandles.dropArguments(MethodHandles.constant(int.class, 3), 0, int.class));
+        Assert.assertEquals(7, identity.applyAsInt(7));
+        Assert.assertEquals(3, constant.applyAsInt(7));
+        Assert.assertNotSame(identity.getClass(), constant.getClass());
+        Assert.assertSame(StateMachineCompiler.class.getClassLoader(), identity.getClass().getClassLoader());
+        Assert.assertSame(StateMachineCompiler.class.getPackage(), identity.getClass().getPackage());
+    }
+
+    /**
+     * Measures how many bytes the current thread allocates while running a task, after running it once to warm up.
+     * @return the number of bytes, or -1 if allocations cannot be measured
+     */
+    private static long allocatedBytes(Runnable task) {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        if (!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        task.run();
+        long before = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+        task.run();
+        return allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+    }
+
+    @Test
+    public void testUpdateAndFireDoNotAllocate() {
+        AtomicBoolean toggle = new AtomicBoolean(false);
+        State offState = new State() {
+            @Override
+            public void onEnterState() {
+
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        State onState = recognizerState("on", false);
+        offState.addTransition(new Transition(onState) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return toggle.get();
+            }
+        });
+        onState.addTransition(new Transition(offState, String.class) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+        });
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(offState, onState);
+        stateMachine.setEntryState(offState);
+        String event = "off";
+        Runnable updates = () -> {
+            for (int i = 0; i < 20000; i++) {
+                toggle.set((i & 1) == 0);
+                stateMachine.update();
+                stateMachine.fire(event);
+            }
+        };
+
+        // measuring itself may allocate a little
+        long allocated = allocatedBytes(updates);
+        Assume.assumeTrue("Allocations cannot be measured on this JVM", allocated >= 0);
+        Assert.assertTrue("Unfrozen state machine allocated " + allocated + " bytes", allocated < 1024);
+        stateMachine.freeze();
+        allocated = allocatedBytes(updates);
+        Assert.assertTrue("Frozen state machine allocated " + allocated + " bytes", allocated < 1024);
+
+        StateMachinePool pool = new StateMachinePool(stateMachine, 64);
+        IntFunction<Object> contexts = instance -> null;
+        allocated = allocatedBytes(() -> {
+            for (int i = 0; i < 1000; i++) {
+                toggle.set((i & 1) == 0);
+                pool.updateAll(contexts);
+                pool.fire(i & 63, event, null);
+            }
+        });
+        Assert.assertTrue("Pool allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    @Test
+    public void testAsyncStateMachineQueuesEventsWhileTransitioning() {
+        CompletableFuture<Void> entered = new CompletableFuture<>();
+        State idleState = recognizerState("idle", false);
+        State loadingState = new State("loading") {
+            @Override
+            public void onEnterState() {
+
+            }
+
+            @Override
+            public CompletionStage<Void> onEnterStateAsync() {
+                return entered;
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        State readyState = recognizerState("ready", false);
+        idleState.addTransition(eventTransition(loadingState, "load"));
+        loadingState.addTransition(eventTransition(readyState, "done"));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(idleState, loadingState, readyState);
+        stateMachine.setEntryState(idleState);
+        AsyncStateMachine asyncStateMachine = new AsyncStateMachine(stateMachine, Runnable::run);
+
+        CompletableFuture<Boolean> load = asyncStateMachine.fire("load").toCompletableFuture();
+        CompletableFuture<Boolean> done = asyncStateMachine.fire("done").toCompletableFuture();
+        Assert.assertFalse(load.isDone());
+        Assert.assertTrue(asyncStateMachine.isTransitioning());
+        Assert.assertSame(loadingState, asyncStateMachine.getCurrentState());
+        Assert.assertEquals(1, asyncStateMachine.getQueueDepth());
+
+        entered.complete(null);
+        Assert.assertTrue(load.join());
+        Assert.assertTrue(done.join());
+        Assert.assertFalse(asyncStateMachine.isTransitioning());
+        Assert.assertSame(readyState, asyncStateMachine.getCurrentState());
+        Assert.assertFalse(asyncStateMachine.fire("load").toCompletableFuture().join());
+    }
+
+    @Test
+    public void testAsyncStateMachineFailsRequestsTheExecutorRejects() {
+        CompletableFuture<Void> entered = new CompletableFuture<>();
+        State idleState = recognizerState("idle", false);
+        State loadingState = new State("loading") {
+            @Override
+            public void onEnterState() {
+
+            }
+
+            @Override
+            public CompletionStage<Void> onEnterStateAsync() {
+                return entered;
+            }
+
+            @Override
+            public void whileInState() {
+
+            }
+
+            @Override
+            public void onExitState() {
+
+            }
+        };
+        State readyState = recognizerState("ready", false);
+        idleState.addTransition(eventTransition(loadingState, "load"));
+        loadingState.addTransition(eventTransition(readyState, "done"));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(idleState, loadingState, readyState);
+        stateMachine.setEntryState(idleState);
+        AtomicBoolean rejecting = new AtomicBoolean(true);
+        AsyncStateMachine asyncStateMachine = new AsyncStateMachine(stateMachine, task -> {
+            if (rejecting.get()) {
+                throw new RejectedExecutionException("Executor is shut down");
+            }
+            task.run();
+        });
+
+        CompletableFuture<Boolean> rejected = asyncStateMachine.fire("load").toCompletableFuture();
+        Assert.assertTrue(rejected.isCompletedExceptionally());
+        Assert.assertEquals(0, asyncStateMachine.getQueueDepth());
+
+        // the state machine is not wedged, so it handles requests again once the executor accepts them
+        rejecting.set(false);
+        CompletableFuture<Boolean> load = asyncStateMachine.fire("load").toCompletableFuture();
+        CompletableFuture<Boolean> done = asyncStateMachine.fire("done").toCompletableFuture();
+        Assert.assertFalse(load.isDone());
+
+        // resuming after the pending callback is rejected too, which fails the request still waiting
+        rejecting.set(true);
+        entered.complete(null);
+        Assert.assertTrue(load.join());
+        Assert.assertTrue(done.isCompletedExceptionally());
+        Assert.assertSame(loadingState, asyncStateMachine.getCurrentState());
+
+        rejecting.set(false);
+        Assert.assertTrue(asyncStateMachine.fire("done").toCompletableFuture().join());
+        Assert.assertSame(readyState, asyncStateMachine.getCurrentState());
+
+        boolean success = false;
+        try {
+            new AsyncStateMachine(stateMachine, null);
+        } catch (NullPointerException e) {
+            success = true;
+        }
+        Assert.assertTrue(success);
+    }
+
+    @Test
+    public void testSignalGuardsAreOnlyEvaluatedWhenDirty() {
+        Signal<Integer> temperature = new Signal<>(20);
+        AtomicInteger evaluations = new AtomicInteger();
+        State coolState = recognizerState("cool", false);
+        State hotState = recognizerState("hot", false);
+        Transition heating = new Transition(hotState) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                evaluations.incrementAndGet();
+                return temperature.get() > 30;
+            }
+        }.dependsOn(temperature);
+        coolState.addTransition(heating);
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(coolState, hotState);
+        stateMachine.setEntryState(coolState);
+        stateMachine.freeze();
+
+        for (int i = 0; i < 100; i++) {
+            stateMachine.update();
+        }
+        Assert.assertEquals(1, evaluations.get());
+        Assert.assertSame(coolState, stateMachine.getCurrentState());
+
+        temperature.set(25);
+        stateMachine.update();
+        Assert.assertEquals(2, evaluations.get());
+        temperature.set(25);
+        stateMachine.update();
+        Assert.assertEquals(2, evaluations.get());
+
+        temperature.set(35);
+        stateMachine.update();
+        Assert.assertEquals(3, evaluations.get());
+        Assert.assertSame(hotState, stateMachine.getCurrentState());
+
+        // the guard cache was laid out at freeze, so dependencies can no longer change
+        boolean success = false;
+        try {
+            heating.dependsOn(new Signal<>(0));
+        } catch (StateMachineFrozenException e) {
+            success = true;
+        }
+        Assert.assertTrue(success);
+    }
+
+    @Test
+    public void testShardedRuntimeRoutesEventsToOwningShard() {
+        State idleState = recognizerState("idle", false);
+        State runningState = recognizerState("running", false);
+        State doneState = recognizerState("done", false);
+        idleState.addTransition(eventTransition(runningState, "go"));
+        runningState.addTransition(new Transition(doneState) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+        });
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(idleState, runningState, doneState);
+        stateMachine.setEntryState(idleState);
+
+        try (ShardedRuntime runtime = new ShardedRuntime(stateMachine, 4, 4096)) {
+            for (long key = 0; key < 1000; key++) {
+                Assert.assertTrue(runtime.add(key * 7919, null));
+            }
+            for (long key = 0; key < 1000; key += 2) {
+                Assert.assertTrue(runtime.fire(key * 7919, "go"));
+            }
+            runtime.tick();
+            Assert.assertTrue(runtime.remove(0));
+            for (long key = 1; key < 1000; key++) {
+                State expected = key % 2 == 0 ? doneState : idleState;
+                Assert.assertSame(expected, runtime.getCurrentState(key * 7919).toCompletableFuture().join());
+            }
+            Assert.assertNull(runtime.getCurrentState(0).toCompletableFuture().join());
+
+            int instances = 0;
+            long events = 0;
+            for (int shard = 0; shard < runtime.getShardCount(); shard++) {
+                ShardMetrics metrics = runtime.getShardMetrics(shard);
+                Assert.assertTrue(metrics.getInstanceCount() > 0);
+                instances += metrics.getInstanceCount();
+                events += metrics.getEventLatency().getCount();
+            }
+            Assert.assertEquals(999, instances);
+            Assert.assertEquals(500, events);
+        }
+    }
+
+    @Test
+    public void testIdleShardsParkUntilWoken() throws InterruptedException {
+        State idleState = recognizerState("idle", false);
+        State runningState = recognizerState("running", false);
+        idleState.addTransition(eventTransition(runningState, "go"));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(idleState, runningState);
+        stateMachine.setEntryState(idleState);
+
+        List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+        ThreadFactory threadFactory = task -> {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            threads.add(thread);
+            return thread;
+        };
+        try (ShardedRuntime runtime = new ShardedRuntime(stateMachine, 1, 1024, threadFactory)) {
+            Assert.assertTrue(runtime.add(1, null));
+            Assert.assertSame(idleState, runtime.getCurrentState(1).toCompletableFuture().join());
+            Thread shardThread = threads.get(0);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (shardThread.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            // parked without a timeout, rather than waking up periodically to look for work
+            Assert.assertEquals(Thread.State.WAITING, shardThread.getState());
+
+            Assert.assertTrue(runtime.fire(1, "go"));
+            Assert.assertSame(runningState, runtime.getCurrentState(1).toCompletableFuture().join());
+            runtime.tick();
+            Assert.assertSame(runningState, runtime.getCurrentState(1).toCompletableFuture().join());
+        }
+    }
+
+    @Test
+    public void testShardedRuntimePassivatesIdleInstances() throws IOException {
+        State waitingState = recognizerState("waiting", false);
+        State doneState = recognizerState("done", false);
+        waitingState.addTransition(new Transition(doneState, String.class) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+
+            @Override
+            public boolean acceptsEvent(Object event, Object context) {
+                // only taken if the context survived passivation
+                return event.equals("finish-" + context);
+            }
+        });
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(waitingState, doneState);
+        stateMachine.setEntryState(waitingState);
+        ContextCodec codec = new ContextCodec() {
+            @Override
+            public int getSize() {
+                return 4;
+            }
+
+            @Override
+            public void write(Object context, ByteBuffer buffer) {
+                buffer.putInt((Integer) context);
+            }
+
+            @Override
+            public Object read(ByteBuffer buffer) {
+                return buffer.getInt();
+            }
+        };
+
+        Path directory = Files.createTempDirectory("stateful");
+        PassivationPolicy policy = new PassivationPolicy(directory, codec, 10, null);
+        try (ShardedRuntime runtime = new ShardedRuntime(stateMachine, 1, 1024, Thread::new, policy)) {
+            for (int key = 0; key < 100; key++) {
+                Assert.assertTrue(runtime.add(key, key));
+            }
+            Assert.assertSame(waitingState, runtime.getCurrentState(0).toCompletableFuture().join());
+            ShardMetrics metrics = runtime.getShardMetrics(0);
+            Assert.assertEquals(10, metrics.getInstanceCount());
+            Assert.assertEquals(90, metrics.getPassivatedCount());
+
+            for (int key = 0; key < 20; key++) {
+                Assert.assertTrue(runtime.fire(key, "finish-" + key));
+            }
+            for (int key = 0; key < 100; key++) {
+                State expected = key < 20 ? doneState : waitingState;
+                Assert.assertSame(expected, runtime.getCurrentState(key).toCompletableFuture().join());
+            }
+            metrics = runtime.getShardMetrics(0);
+            Assert.assertEquals(10, metrics.getInstanceCount());
+            Assert.assertEquals(90, metrics.getPassivatedCount());
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testPassivationStoreReusesRecordsOfFailedWrites() throws IOException {
+        ContextCodec codec = new ContextCodec() {
+            @Override
+            public int getSize() {
+                return 4;
+            }
+
+            @Override
+            public void write(Object context, ByteBuffer buffer) {
+                if (context == null) {
+                    throw new IllegalArgumentException("No context to write");
+                }
+                buffer.putInt((Integer) context);
+            }
+
+            @Override
+            public Object read(ByteBuffer buffer) {
+                return buffer.getInt();
+            }
+        };
+
+        Path directory = Files.createTempDirectory("stateful");
+        Path file = directory.resolve("shard-0");
+        try (PassivationStore store = new PassivationStore(file, codec)) {
+            store.write(1, 0, 1);
+            store.remove(1);
+            for (int key = 2; key < 4; key++) {
+                boolean success = false;
+                try {
+                    store.write(key, 0, null);
+                } catch (IllegalArgumentException e) {
+                    success = true;
+                }
+                Assert.assertTrue(success);
+                Assert.assertFalse(store.contains(key));
+            }
+            store.write(4, 1, 4);
+            store.write(5, 1, 5);
+
+            // both failed writes gave their record back, so only two records were ever used
+            Assert.assertEquals(16, Files.size(file));
+            Assert.assertEquals(1, store.readState(4));
+            Assert.assertEquals(4, store.readContext());
+            Assert.assertEquals(1, store.readState(5));
+            Assert.assertEquals(5, store.readContext());
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testJournalReplaySkipsDamagedSegmentTails() throws IOException, InterruptedException {
+        State firstState = recognizerState("first", false);
+        State secondState = recognizerState("second", false);
+        firstState.addTransition(new SymbolTransition(secondState, 'x'));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(firstState, secondState);
+        stateMachine.setEntryState(firstState);
+
+        Path directory = Files.createTempDirectory("stateful");
+        try {
+            try (FileTransitionJournal journal = new FileTransitionJournal(stateMachine, directory)) {
+                journal.record(0, 0, 1, 0);
+                journal.record(1, 0, 1, 0);
+                journal.record(2, 0, 1, 0);
+                journal.awaitDurable();
+            }
+            Path segment;
+            try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory)) {
+                segment = segments.iterator().next();
+            }
+            // corrupt the last record, and leave a segment whose header never made it to storage
+            byte[] bytes = Files.readAllBytes(segment);
+            bytes[bytes.length - FileTransitionJournal.RECORD_SIZE] ^= 1;
+            Files.write(segment, bytes);
+            String name = segment.getFileName().toString();
+            Files.write(segment.resolveSibling(String.format("%020d", 1) + name.substring(20)), new byte[7]);
+
+            try (FileTransitionJournal journal = new FileTransitionJournal(stateMachine, directory)) {
+                journal.record(3, 0, 1, 0);
+                journal.record(4, 0, 1, 0);
+                journal.awaitDurable();
+            }
+
+            long[] instances = new long[5];
+            int[] count = {0};
+            Assert.assertEquals(4, FileTransitionJournal.replay(directory,
+                    (instance, fromState, toState, transitionId, timestamp) -> instances[count[0]++] = instance));
+            Assert.assertArrayEquals(new long[] {0, 1, 3, 4, 0}, instances);
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testJournalReportsWriteFailuresToRecorders() throws IOException, InterruptedException {
+        State firstState = recognizerState("first", false);
+        State secondState = recognizerState("second", false);
+        firstState.addTransition(new SymbolTransition(secondState, 'x'));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(firstState, secondState);
+        stateMachine.setEntryState(firstState);
+
+        Path directory = Files.createTempDirectory("stateful");
+        // one record per segment, so the second record needs a new segment, which cannot be created
+        FileTransitionJournal journal = new FileTransitionJournal(stateMachine, directory, 16,
+                32 + FileTransitionJournal.RECORD_SIZE);
+        deleteDirectory(directory);
+        boolean success = false;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!success && System.nanoTime() < deadline) {
+            try {
+                journal.record(0, 0, 1, 0);
+                Thread.sleep(1);
+            } catch (UncheckedIOException e) {
+                success = e.getCause() != null;
+            }
+        }
+        Assert.assertTrue(success);
+
+        success = false;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            success = true;
+        }
+        Assert.assertTrue(success);
+    }
+
+    @Test
+    public void testActorReceivesExpiredTimersThroughMailbox() {
+        State closedState = recognizerState("closed", false);
+        State openedState = recognizerState("opened", false);
+        closedState.addTransition(eventTransition(openedState, "open"));
+        openedState.addTransition(new TimedTransition(closedState, 500) {
+            @Override
+            public void onActivated() {
+
+            }
+        });
+        TimingWheel wheel = new TimingWheel(10, 64, 0);
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(closedState, openedState);
+        stateMachine.setEntryState(closedState);
+        stateMachine.setTimingWheel(wheel);
+        List<Runnable> tasks = new ArrayList<>();
+        StateMachineActor actor = new StateMachineActor(stateMachine, tasks::add, 16, 16);
+
+        Assert.assertTrue(actor.tell("open"));
+        runAll(tasks);
+        Assert.assertSame(openedState, stateMachine.getCurrentState());
+
+        // the timer expires on the wheel's thread, but only the actor may change the state
+        wheel.advanceTo(600);
+        Assert.assertSame(openedState, stateMachine.getCurrentState());
+        Assert.assertEquals(1, actor.getQueueDepth());
+        runAll(tasks);
+        Assert.assertSame(closedState, stateMachine.getCurrentState());
+
+        boolean success = false;
+        try {
+            stateMachine.setTimingWheel(null);
+        } catch (IllegalStateException e) {
+            success = true;
+        }
+        Assert.assertTrue(success);
+    }
+
+    @Test
+    public void testEventTransitionsMatchInterfaceTypes() {
+        State idleState = recognizerState("idle", false);
+        State busyState = recognizerState("busy", false);
+        idleState.addTransition(new Transition(busyState, CharSequence.class) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+        });
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(idleState, busyState);
+        stateMachine.setEntryState(idleState);
+
+        Assert.assertFalse(stateMachine.fire(42));
+        Assert.assertTrue(stateMachine.fire(new StringBuilder("work")));
+        Assert.assertSame(busyState, stateMachine.getCurrentState());
+    }
+
+    private static Transition prioritizedEventTransition(State end, Class<?> eventType, int priority) {
+        return new Transition(end, eventType) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+
+            @Override
+            public int getPriority() {
+                return priority;
+            }
+        };
+    }
+
+    @Test
+    public void testEventTransitionsOnSupertypesHonorPriority() {
+        State idleState = recognizerState("idle", false);
+        State exactState = recognizerState("exact", false);
+        State superState = recognizerState("super", false);
+        idleState.addTransition(prioritizedEventTransition(exactState, String.class, 0));
+        idleState.addTransition(prioritizedEventTransition(superState, Object.class, 5));
+        exactState.addTransition(prioritizedEventTransition(idleState, String.class, 3));
+        exactState.addTransition(prioritizedEventTransition(superState, Object.class, 1));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(idleState, exactState, superState);
+        stateMachine.setEntryState(idleState);
+
+        Assert.assertTrue(stateMachine.fire("event"));
+        Assert.assertSame(superState, stateMachine.getCurrentState());
+
+        stateMachine.setCurrentState(exactState);
+        Assert.assertTrue(stateMachine.fire("event"));
+        Assert.assertSame(idleState, stateMachine.getCurrentState());
+    }
+
+    @Test
+    public void testRepeatedEventTypesIndexTransitionsOnce() {
+        AtomicInteger checks = new AtomicInteger();
+        State idleState = recognizerState("idle", false);
+        State busyState = recognizerState("busy", false);
+        idleState.addTransition(prioritizedEventTransition(busyState, String.class, 0));
+        Transition repeated = new Transition(busyState, String.class, String.class, CharSequence.class) {
+            @Override
+            public void onActivated() {
+
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+
+            @Override
+            public int getPriority() {
+                return 5;
+            }
+
+            @Override
+            public boolean acceptsEvent(Object event, Object context) {
+                checks.incrementAndGet();
+                return false;
+            }
+        };
+        idleState.addTransition(repeated);
+        Assert.assertEquals(2, repeated.eventTypes.length);
+        Assert.assertEquals(2, idleState.getEventTransitions(String.class).length);
+        Assert.assertSame(repeated, idleState.getEventTransitions(String.class)[0]);
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(idleState, busyState);
+        stateMachine.setEntryState(idleState);
+
+        Assert.assertTrue(stateMachine.fire("event"));
+        Assert.assertEquals(1, checks.get());
+    }
+
+    @Test
+    public void testAllMatchingTakesTransitionsInPriorityOrderBeforeAndAfterFreezing() {
+        List<String> unfrozen = new ArrayList<>();
+        allMatchingStateMachine(unfrozen).update();
+        List<String> frozen = new ArrayList<>();
+        StateMachine stateMachine = allMatchingStateMachine(frozen);
+        stateMachine.freeze();
+        stateMachine.update();
+
+        Assert.assertEquals(Arrays.asList("high", "middle", "first", "second"), unfrozen);
+        Assert.assertEquals(unfrozen, frozen);
+    }
+
+    private static StateMachine allMatchingStateMachine(List<String> taken) {
+        State firstState = recognizerState("first", false);
+        State secondState = recognizerState("second", false);
+        firstState.addTransition(labelledTransition(secondState, "first", 0, taken));
+        firstState.addTransition(labelledTransition(secondState, "high", 5, taken));
+        firstState.addTransition(labelledTransition(secondState, "second", 0, taken));
+        firstState.addTransition(labelledTransition(secondState, "middle", 3, taken));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(firstState, secondState);
+        stateMachine.setEntryState(firstState);
+        stateMachine.setStepMode(StepMode.ALL_MATCHING);
+        return stateMachine;
+    }
+
+    private static Transition labelledTransition(State end, String label, int priority, List<String> taken) {
+        return new Transition(end) {
+            @Override
+            public void onActivated() {
+                taken.add(label);
+            }
+
+            @Override
+            public boolean shouldActivate() {
+                return true;
+            }
+
+            @Override
+            public int getPriority() {
+                return priority;
+            }
+        };
+    }
+
+    @Test
+    public void testLatencyHistogramMergesStripes() throws InterruptedException {
+        final int threadCount = 8;
+        final int valueCount = 20000;
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < valueCount; i++) {
+                    histogram.record(i & 1023);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        HistogramSnapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(threadCount * valueCount, snapshot.getCount());
+        Assert.assertEquals(threadCount * (valueCount / 1024L * (1023 * 1024 / 2) + (valueCount % 1024L)
+                * (valueCount % 1024 - 1) / 2), snapshot.getSum());
+        Assert.assertEquals(threadCount * (long) (valueCount / 1024 + 1), snapshot.getBucketCount(0));
+    }
+
+    @Test
+    public void testPoolSnapshotKeepsPreviousFileWhenWriteFails() throws IOException {
+        State firstState = recognizerState("first", false);
+        State secondState = recognizerState("second", false);
+        firstState.addTransition(new SymbolTransition(secondState, 'x'));
+        StateMachine stateMachine = new StateMachine();
+        stateMachine.addStates(firstState, secondState);
+        stateMachine.setEntryState(firstState);
+        StateMachinePool pool = new StateMachinePool(stateMachine, 2);
+
+        Path directory = Files.createTempDirectory("stateful");
+        try {
+            Path file = directory.resolve("pool.snapshot");
+            PoolSnapshot.write(pool, file);
+            pool.fire(0, (int) 'x', null);
+
+            boolean success = false;
+            try {
+                PoolSnapshot.write(pool, file, new SnapshotPayload() {
+                    @Override
+                    public int getSize() {
+                        return 4;
+                    }
+
+                    @Override
+                    public void write(int instance, ByteBuffer buffer) {
+                        buffer.put((byte) instance);
+                    }
+
+                    @Override
+                    public void read(int instance, ByteBuffer buffer) {
+
+                    }
+                });
+            } catch (IllegalStateException e) {
+                success = true;
+            }
+            Assert.assertTrue(success);
+
+            // the failed write left neither a partial snapshot nor its temporary file behind
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                int fileCount = 0;
+                for (Path ignored : files) {
+                    fileCount++;
+                }
+                Assert.assertEquals(1, fileCount);
+            }
+            StateMachinePool restored = new StateMachinePool(stateMachine, 1);
+            Assert.assertEquals(2, PoolSnapshot.read(file, restored));
+            Assert.assertSame(firstState, restored.getCurrentState(0));
+
+            PoolSnapshot.write(pool, file);
+            Assert.assertEquals(2, PoolSnapshot.read(file, restored));
+            Assert.assertSame(secondState, restored.getCurrentState(0));
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
 }